@@ -0,0 +1,290 @@
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes PNG images on background threads, so that saving a capture never
+ * holds up the thread that asked for it. Images are copied when submitted and
+ * queued in a bounded queue; when it is full, the caller either waits or the
+ * image is dropped, depending on the overflow policy. A write to a file that
+ * is still waiting in the queue replaces the queued image instead of writing
+ * the file twice. Each writer thread reuses its own ImageWriter, and files
+ * appear atomically once complete.
+ */
+public class AsyncImageWriter implements AutoCloseable {
+
+    public static final String DEFAULT_DIRECTORY = "images";
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+    // Deflate level from 0 (none) to 9 (smallest). Higher levels save little on
+    // camera frames and cost a lot of time, so favor speed.
+    public static final int DEFAULT_COMPRESSION_LEVEL = 1;
+
+    /**
+     * What submit does when the queue is full.
+     */
+    public enum Overflow {
+        /** Wait until there is room in the queue. */
+        BLOCK,
+        /** Drop the image and fail its future at once. */
+        DROP
+    }
+
+    /**
+     * A queued write. Its image is replaced if the same file is submitted again
+     * before the write starts.
+     */
+    private static class Job {
+
+        final Path path;
+        final CompletableFuture<Path> future = new CompletableFuture<>();
+        BufferedImage image;
+        boolean started = false;
+
+        Job(Path path, BufferedImage image) {
+            this.path = path;
+            this.image = image;
+        }
+
+    }
+
+    private final Path directory;
+    private final Overflow overflow;
+    private final int compressionLevel;
+    private final BlockingQueue<Job> queue;
+    private final Map<Path, Job> pending = new ConcurrentHashMap<>();
+    private final List<Thread> threads = new ArrayList<>();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Creates a writer into the specified directory with one writer thread and
+     * the default queue capacity and compression level, which waits when the
+     * queue is full.
+     */
+    public AsyncImageWriter(Path directory) {
+        this(directory, 1, DEFAULT_QUEUE_CAPACITY, Overflow.BLOCK, DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    /**
+     * Creates a writer into the specified directory with the specified number of
+     * writer threads, queue capacity, overflow policy and deflate level (0 to 9).
+     * The JDK's PNG writer picks the row filters itself, so the deflate level is
+     * the only compression setting.
+     */
+    public AsyncImageWriter(Path directory, int threadCount, int queueCapacity, Overflow overflow,
+                            int compressionLevel) {
+        if (compressionLevel < 0 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Compression level must be between 0 and 9: " + compressionLevel);
+        }
+        this.directory = directory;
+        this.overflow = overflow;
+        this.compressionLevel = compressionLevel;
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(this::writeLoop, "image-writer-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+    }
+
+    /**
+     * Returns the writer shared by the camera and the generator, which writes into
+     * DEFAULT_DIRECTORY and finishes its queued writes when the JVM exits.
+     */
+    public static AsyncImageWriter getDefault() {
+        return Holder.INSTANCE;
+    }
+
+    private static class Holder {
+
+        static final AsyncImageWriter INSTANCE = new AsyncImageWriter(Paths.get(DEFAULT_DIRECTORY));
+
+        static {
+            Runtime.getRuntime().addShutdownHook(new Thread(INSTANCE::close));
+        }
+
+    }
+
+    /**
+     * Queues the specified image to be written as a PNG to the specified file in
+     * the output directory. The image is copied first, so the caller may reuse
+     * it. Returns a future that completes with the file's path once written, or
+     * exceptionally if the write fails or the image was dropped.
+     */
+    public CompletableFuture<Path> submit(BufferedImage image, String fileName) {
+        Path path = directory.resolve(fileName);
+        BufferedImage copy = copy(image);
+
+        // Replace the image of a queued write to the same file, if it has not
+        // started yet
+        Job[] created = new Job[1];
+        Job job = pending.compute(path, (p, queued) -> {
+            if (queued != null) {
+                synchronized (queued) {
+                    if (!queued.started) {
+                        queued.image = copy;
+                        return queued;
+                    }
+                }
+            }
+            created[0] = new Job(path, copy);
+            return created[0];
+        });
+        if (created[0] == null) {
+            coalesced.incrementAndGet();
+            return job.future;
+        }
+
+        if (!running) {
+            reject(job, "Image writer is closed");
+            return job.future;
+        }
+        boolean queued;
+        if (overflow == Overflow.BLOCK) {
+            try {
+                queue.put(job);
+                queued = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                queued = false;
+            }
+        } else {
+            queued = queue.offer(job);
+        }
+        if (!queued) {
+            dropped.incrementAndGet();
+            reject(job, "Image write queue is full");
+        } else if (!running && queue.remove(job)) {
+            // Queued after close drained the queue, so no writer will take it;
+            // whichever of close and this removes the job rejects it
+            reject(job, "Image writer is closed");
+        }
+        return job.future;
+    }
+
+    private void reject(Job job, String message) {
+        pending.remove(job.path, job);
+        job.future.completeExceptionally(new RejectedExecutionException(message + ": " + job.path));
+    }
+
+    private void writeLoop() {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality((9 - compressionLevel) / 9f);
+
+        try {
+            while (running || !queue.isEmpty()) {
+                Job job = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (job == null) {
+                    continue;
+                }
+
+                // From here on, a new image for this file gets a write of its own
+                BufferedImage image;
+                synchronized (job) {
+                    job.started = true;
+                    image = job.image;
+                    job.image = null;
+                }
+                pending.remove(job.path, job);
+
+                try {
+                    write(writer, param, image, job.path);
+                    written.incrementAndGet();
+                    job.future.complete(job.path);
+                } catch (IOException | RuntimeException e) {
+                    job.future.completeExceptionally(e);
+                }
+            }
+        } catch (InterruptedException e) {
+            // Only close stops the writers
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    /**
+     * Writes the image to a temporary file next to the target and moves it into
+     * place, so that the target never holds a partial image.
+     */
+    private static void write(ImageWriter writer, ImageWriteParam param, BufferedImage image, Path path)
+            throws IOException {
+        Files.createDirectories(path.toAbsolutePath().getParent());
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(tmp.toFile())) {
+            writer.setOutput(out);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.setOutput(null);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        ColorModel colorModel = image.getColorModel();
+        return new BufferedImage(colorModel, image.copyData(null), colorModel.isAlphaPremultiplied(), null);
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops accepting images and waits for the queued ones to be written.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        // A caller that was blocked on a full queue may have got in after the
+        // writers finished
+        Job job;
+        while ((job = queue.poll()) != null) {
+            reject(job, "Image writer is closed");
+        }
+    }
+
+}
@@ -1,54 +1,105 @@
-import nu.pattern.OpenCV;
+import org.bytedeco.javacv.Frame;
 import org.bytedeco.javacv.FrameGrabber;
 import org.bytedeco.javacv.Java2DFrameConverter;
 import org.bytedeco.javacv.OpenCVFrameGrabber;
+import org.opencv.core.Mat;
 import org.opencv.core.Point;
-import org.opencv.core.*;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
-import org.opencv.imgproc.Moments;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.geom.AffineTransform;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 public class Camera {
 
-    private final String imageDirectory = "src/main/resources/";
+    // A scan with a deadline keeps the last SCAN_BUFFER_FRAMES frames and
+    // decodes the newest of them on up to SCAN_WORKERS threads at once
+    public static final int SCAN_BUFFER_FRAMES = 4;
+    public static final int SCAN_WORKERS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
 
-    private final int FPS;
+    /**
+     * The outcome of a scan with a deadline: the detection of the first frame
+     * that decoded, the number of frames decoded in all, and how long the scan
+     * took.
+     */
+    public record ScanResult(DetectionResult detection, int framesTried, long nanos) {
+    }
+
+    private int FPS;
+    private boolean started = false;
 
     private final FrameGrabber grabber;
     private final Java2DFrameConverter converter;
     private BufferedImage currentFrame;
+    private BufferedImage rawFrame;
 
     private boolean scanningQR = true;
     private boolean bwOn = false;
     private boolean mirrored = false;
     private int bwThreshold = 150;
 
-    private MatOfPoint2f qrContour;
+    private volatile QRDecoder decoder = new QRDecoder();
+    private volatile AsyncImageWriter imageWriter = AsyncImageWriter.getDefault();
+    private final FrameGate gate = new FrameGate();
+    private volatile boolean gating = true;
+    private volatile Point[] qrOutline;
+    // Guarded by itself, so that no frame is added to a scan's buffer once the
+    // scan has removed it
+    private final List<BlockingDeque<Mat>> scanBuffers = new ArrayList<>();
+    private volatile long lastGrabNanos;
+    // Whether the grabber has run out of frames, e.g. at the end of a video file
+    private volatile boolean finished = false;
+    private ExecutorService scanPool;
 
     /**
-     * Starts the frame grabber.
+     * Creates a camera for the default capture device. The device is opened on
+     * the first grab, or by calling start.
      */
     public Camera() {
-        OpenCV.loadLocally();
+        this(new OpenCVFrameGrabber(0));
+    }
+
+    /**
+     * Creates a camera for the specified frame grabber, which is started on the
+     * first grab, or by calling start. If the grabber is null, the camera is
+     * created offline and can only be used to scan images passed to it directly.
+     */
+    public Camera(FrameGrabber grabber) {
+        Natives.load();
 
-        grabber = new OpenCVFrameGrabber(0);
+        this.grabber = grabber;
         converter = new Java2DFrameConverter();
+    }
+
+    /**
+     * Starts the frame grabber and grabs the first frame, if that has not been
+     * done yet. Opening a camera can take a while, so this may be called ahead of
+     * time on a background thread.
+     */
+    public synchronized void start() {
+        if (started || grabber == null) {
+            return;
+        }
+        started = true;
 
         try {
             grabber.start();
             currentFrame = converter.convert(grabber.grab());
+            rawFrame = currentFrame;
         } catch (Exception e) {
             System.out.println("Could not start camera!");
         }
@@ -57,17 +108,38 @@ public class Camera {
     }
 
     /**
-     * Updates and returns the current frame with the selected settings applied.
+     * Updates and returns the current frame with the selected settings applied. If
+     * scanningQR is true, the outline of the QR code in the frame is published
+     * through getQROutline instead of being drawn. While gating is on, the outline
+     * is only searched for in frames that pass the frame gate; it is kept for an
+     * unchanged frame and cleared for a blurry one. Can be called from any
+     * thread.
      */
     public BufferedImage getCurrentFrame(boolean scanningQR, boolean mirrored, boolean bwOn) {
-        try {
-            currentFrame = converter.convert(grabber.grab());
-        } catch (Exception e) {
-            System.out.println("Error capturing frame!");
+        BufferedImage grabbed = grabFrame();
+        if (grabbed != null) {
+            currentFrame = grabbed;
         }
 
-        if (scanningQR) {
-            currentFrame = findQRCode(currentFrame);
+        // Publish the outline's geometry rather than drawing it onto the frame
+        if (scanningQR && currentFrame != null) {
+            Mat mat = bufferedImage2Mat(currentFrame);
+            FrameGate.Decision decision = FrameGate.Decision.PROCESS;
+            if (gating) {
+                // Frames are also taken on the EDT, e.g. by displayFrame, but the
+                // gate replaces its reference frame and takes one at a time
+                synchronized (gate) {
+                    decision = gate.evaluate(mat);
+                }
+            }
+            if (decision.shouldProcess() || qrOutline == null) {
+                qrOutline = locateQR(mat);
+            } else if (decision == FrameGate.Decision.BLURRY) {
+                qrOutline = new Point[0];
+            }
+            mat.release();
+        } else {
+            qrOutline = null;
         }
         if (mirrored) {
             currentFrame = mirror(currentFrame);
@@ -83,6 +155,41 @@ public class Camera {
         return getCurrentFrame(scanningQR, mirrored, bwOn);
     }
 
+    /**
+     * Grabs the next frame into rawFrame and hands a copy to every scan in
+     * progress. Returns the frame, or null if the grab failed or the grabber has
+     * run out of frames.
+     */
+    private synchronized BufferedImage grabFrame() {
+        start();
+        try {
+            Frame frame = grabber.grab();
+            if (frame == null) {
+                finished = true;
+            }
+            rawFrame = converter.convert(frame);
+        } catch (Exception e) {
+            rawFrame = null;
+            System.out.println("Error capturing frame!");
+        }
+        lastGrabNanos = System.nanoTime();
+
+        if (rawFrame != null) {
+            synchronized (scanBuffers) {
+                for (BlockingDeque<Mat> buffer : scanBuffers) {
+                    Mat copy = QRDecoder.toMat(rawFrame);
+                    while (!buffer.offerLast(copy)) {
+                        Mat oldest = buffer.pollFirst();
+                        if (oldest != null) {
+                            oldest.release();
+                        }
+                    }
+                }
+            }
+        }
+        return rawFrame;
+    }
+
     /**
      * Displays the specified image in a new window.
      */
@@ -102,13 +209,19 @@ public class Camera {
         displayImage(getCurrentFrame());
     }
 
-    public void saveImage(BufferedImage b, String fileName) {
-        try {
-            ImageIO.write(b, "PNG", new File(imageDirectory + fileName));
-        } catch (Exception e) {
-            System.out.println("WRITE IMAGE FAILED!! " + fileName);
-            e.printStackTrace();
-        }
+    /**
+     * Saves the specified image as a PNG in the image writer's directory, in the
+     * background. The image is copied first, so it may be a frame that is about
+     * to be reused. Returns a future that completes with the file's path once
+     * written.
+     */
+    public CompletableFuture<Path> saveImage(BufferedImage b, String fileName) {
+        return imageWriter.submit(b, fileName).whenComplete((path, e) -> {
+            if (e != null) {
+                System.out.println("WRITE IMAGE FAILED!! " + fileName);
+                e.printStackTrace();
+            }
+        });
     }
 
     /**
@@ -116,149 +229,245 @@ public class Camera {
      * portion of the image to a square image, which is returned.
      */
     public BufferedImage scanQR() throws QRNotFoundException {
-        BufferedImage frame = getCurrentFrame(false, false, false);
-        Mat origImg = bufferedImage2Mat(frame);
-        findQRCode(frame);
-
-        // Calculate center of mass of contour image using moments
-        Moments moment = Imgproc.moments(qrContour);
-        int x = (int) (moment.get_m10() / moment.get_m00());
-        int y = (int) (moment.get_m01() / moment.get_m00());
-
-        // Sort points relative to center of mass
-        Point[] sortedPoints = new Point[4];
-
-        double[] data;
-        for (int i = 0; i < qrContour.rows(); i++) {
-            data = qrContour.get(i, 0);
-            double datax = data[0];
-            double datay = data[1];
-            if (datax < x && datay < y) {
-                sortedPoints[0] = new Point(datax, datay);
-            } else if (datax > x && datay < y) {
-                sortedPoints[1] = new Point(datax, datay);
-            } else if (datax < x && datay > y) {
-                sortedPoints[2] = new Point(datax, datay);
-            } else if (datax > x && datay > y) {
-                sortedPoints[3] = new Point(datax, datay);
+        return scanQR(getCurrentFrame(false, false, false));
+    }
+
+    /**
+     * Scans frames until a QR code decodes or the specified time runs out, as
+     * scanQRAsync does, and returns the first reading.
+     */
+    public ScanResult scanQR(Duration timeout) throws QRNotFoundException, InterruptedException {
+        CompletableFuture<ScanResult> scan = scanQRAsync(timeout);
+        try {
+            return scan.get();
+        } catch (InterruptedException e) {
+            scan.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof QRNotFoundException notFound) {
+                throw notFound;
             }
+            throw new IllegalStateException(e.getCause());
         }
+    }
 
-        // Transform to image with the size specified by QRUtil
-        try {
-            int imgSize = QRUtil.IMAGE_SIZE;
-            int bwThresholdQR = 180;
+    /**
+     * Starts scanning frames for a QR code and returns a future that completes
+     * with the first reading, or with a QRNotFoundException once the specified
+     * time runs out or the frames do. The last SCAN_BUFFER_FRAMES frames are
+     * kept, and SCAN_WORKERS threads each decode the newest one not yet taken,
+     * so a code held still for a moment is read from whichever frame decodes
+     * first rather than from one unlucky frame. Once the future completes,
+     * including by being cancelled, the other decodes are abandoned.
+     * <p>
+     * Frames grabbed by other threads, e.g. a display calling getCurrentFrame,
+     * are used as they arrive; while nobody else grabs, the scan grabs itself.
+     */
+    public CompletableFuture<ScanResult> scanQRAsync(Duration timeout) {
+        long start = System.nanoTime();
+        QRDecoder decoder = this.decoder;
+        CompletableFuture<ScanResult> result = new CompletableFuture<>();
+        BlockingDeque<Mat> buffer = new LinkedBlockingDeque<>(SCAN_BUFFER_FRAMES);
+        AtomicInteger tried = new AtomicInteger();
+        AtomicInteger workers = new AtomicInteger(SCAN_WORKERS);
+        AtomicBoolean exhausted = new AtomicBoolean(false);
+        synchronized (scanBuffers) {
+            scanBuffers.add(buffer);
+        }
 
-            MatOfPoint2f src = new MatOfPoint2f(sortedPoints[0], sortedPoints[1], sortedPoints[2], sortedPoints[3]);
-            MatOfPoint2f dst = new MatOfPoint2f(
-                    new Point(0, 0),
-                    new Point(imgSize - 1, 0),
-                    new Point(0, imgSize - 1),
-                    new Point(imgSize - 1, imgSize - 1));
+        // However the scan ends, stop feeding its buffer and free what is left
+        result.whenComplete((scan, e) -> {
+            synchronized (scanBuffers) {
+                scanBuffers.remove(buffer);
+            }
+            Mat frame;
+            while ((frame = buffer.pollFirst()) != null) {
+                frame.release();
+            }
+        });
+        CompletableFuture.delayedExecutor(timeout.toNanos(), TimeUnit.NANOSECONDS).execute(() ->
+                result.completeExceptionally(new QRNotFoundException("QR code not found in " + tried.get()
+                        + " frames within " + timeout.toMillis() + " ms!")));
+
+        ExecutorService pool = scanPool();
+        pool.execute(() -> {
+            // Grab whenever nobody else has for a couple of frame intervals
+            long interval = TimeUnit.SECONDS.toNanos(1) / (getFPS() > 0 ? getFPS() : 30);
+            long ownGrab = -1;
+            while (!result.isDone()) {
+                long lastGrab = lastGrabNanos;
+                if (lastGrab != ownGrab && System.nanoTime() - lastGrab < 2 * interval) {
+                    LockSupport.parkNanos(interval / 2);
+                    continue;
+                }
+                boolean grabbed = grabFrame() != null;
+                ownGrab = lastGrabNanos;
+                if (!grabbed) {
+                    if (finished) {
+                        exhausted.set(true);
+                        return;
+                    }
+                    // A failed grab, e.g. a dropped frame: try again until the
+                    // time runs out
+                    LockSupport.parkNanos(interval / 2);
+                }
+            }
+        });
+        for (int i = 0; i < SCAN_WORKERS; i++) {
+            pool.execute(() -> {
+                try {
+                    while (!result.isDone()) {
+                        // The newest frame is the likeliest to show the code as it
+                        // is held now
+                        Mat frame = buffer.pollLast(10, TimeUnit.MILLISECONDS);
+                        if (frame == null) {
+                            if (exhausted.get()) {
+                                break;
+                            }
+                            continue;
+                        }
+                        tried.incrementAndGet();
+                        DetectionResult detection;
+                        try {
+                            detection = decoder.decode(frame);
+                        } finally {
+                            frame.release();
+                        }
+                        if (detection.isDecoded()) {
+                            result.complete(new ScanResult(detection, tried.get(), System.nanoTime() - start));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // The camera was released
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    if (workers.decrementAndGet() == 0) {
+                        result.completeExceptionally(new QRNotFoundException("QR code not found in " + tried.get()
+                                + " frames before they ran out!"));
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    private synchronized ExecutorService scanPool() {
+        if (scanPool == null) {
+            scanPool = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "camera-scan");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scanPool;
+    }
 
-            Mat warpMat = Imgproc.getPerspectiveTransform(src, dst);
+    /**
+     * Scans the specified frame for a QR code. If found, the method fits the QR
+     * code portion of the image to a square image, which is returned.
+     */
+    public BufferedImage scanQR(BufferedImage frame) throws QRNotFoundException {
+        int bwThresholdQR = 180;
+        return blackAndWhite(warpQR(frame), bwThresholdQR);
+    }
 
-            Mat destImg = new Mat();
-            Imgproc.warpPerspective(origImg, destImg, warpMat, new Size(imgSize, imgSize));
+    /**
+     * Scans the specified frame for a QR code. If found, the method fits the QR
+     * code portion of the image to a square image without thresholding it, so
+     * that the module intensities can be sampled.
+     */
+    public BufferedImage warpQR(BufferedImage frame) throws QRNotFoundException {
+        Mat origImg = bufferedImage2Mat(frame);
+        try {
+            Point[] outline = locateQR(origImg);
+            Point[] sortedPoints = outline.length == 4 ? QRDecoder.sortCorners(outline) : null;
+            if (sortedPoints == null) {
+                throw new QRNotFoundException();
+            }
 
-            BufferedImage qrImg = mat2BufferedImage(destImg);
-            return blackAndWhite(qrImg, bwThresholdQR);
-        } catch (Exception e) {
-            throw new QRNotFoundException();
+            // Transform to image with the size specified by QRUtil
+            Mat warped = QRDecoder.warp(origImg, sortedPoints);
+            BufferedImage bimg = mat2BufferedImage(warped);
+            warped.release();
+            return bimg;
+        } finally {
+            origImg.release();
         }
+    }
 
+    /**
+     * Returns the corners of the QR code outline last published through
+     * getQROutline, sorted relative to its center of mass as top-left,
+     * top-right, bottom-left and bottom-right, or null if no code was found or
+     * its corners could not be sorted.
+     */
+    public Point[] getQRCorners() {
+        Point[] outline = qrOutline;
+        return outline != null && outline.length == 4 ? QRDecoder.sortCorners(outline) : null;
     }
 
     /**
-     * Finds the QR code in the specified image and assigns the contour of the QR
-     * code's outline to qrContour. Returns the image with the outline drawn.
+     * Finds the QR code in the specified image. Returns a copy of the image with
+     * the outline drawn.
      */
     public BufferedImage findQRCode(BufferedImage bimg) {
-        Mat src = bufferedImage2Mat(bimg);
-
-        // Convert image to grayscale
-        Mat gray = new Mat();
-        Imgproc.cvtColor(src, gray, Imgproc.COLOR_RGBA2GRAY);
-        // Blur image to smooth out noise
-        Mat blur = new Mat();
-        Imgproc.blur(gray, blur, new Size(3, 3));
-
-        // Detecting edges
-        Mat edges = new Mat();
-        double threshold1 = 60;
-        Imgproc.Canny(blur, edges, threshold1, threshold1 * 3);
-
-        List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
-        Mat hierarchy = new Mat();
-
-        Imgproc.findContours(edges, contours, hierarchy, Imgproc.RETR_EXTERNAL, Imgproc.CHAIN_APPROX_SIMPLE);
-
-        MatOfPoint2f largestRectContour = new MatOfPoint2f();
-        double largestArea = 0;
-
-        // Gets the rectangular contour with the largest enclosed area
-        for (MatOfPoint contour : contours) {
-            // Finds the area enclosed by the contour
-            double contourArea = Imgproc.contourArea(contour);
-
-            // Approximates the contour as a polygon
-            MatOfPoint2f contour2f = new MatOfPoint2f();
-            MatOfPoint2f approxPolygon = new MatOfPoint2f();
-//            contour2f.fromList(contour.toList());
-            contour.convertTo(contour2f, CvType.CV_32FC2);
-            double epsilon = Imgproc.arcLength(contour2f, true) * 0.04;
-            Imgproc.approxPolyDP(contour2f, approxPolygon, epsilon, true);
-
-            // If the contour has 4 edges and a larger enclosed area, make it the new
-            // largest rectangular contour
-            long total = approxPolygon.total();
-            if (total == 4 && contourArea > largestArea) {
-                largestRectContour = approxPolygon;
-                largestArea = contourArea;
-            }
+        Point[] outline = locateQR(bimg);
+
+        // Draw outline onto a copy of the frame
+        BufferedImage imageWithOutline = copyRGBImage(bimg);
+        if (outline.length > 0) {
+            Graphics2D g2d = imageWithOutline.createGraphics();
+            g2d.setColor(Color.GREEN);
+            g2d.setStroke(new BasicStroke(3));
+            g2d.draw(toPolygon(outline));
+            g2d.dispose();
         }
+        return imageWithOutline;
+    }
 
-        // Set QR contour to the largest rectangular contour found
-        this.qrContour = largestRectContour;
-
-        MatOfPoint approx1f = new MatOfPoint();
-        largestRectContour.convertTo(approx1f, CvType.CV_32S);
-        List<MatOfPoint> approximation = new ArrayList<MatOfPoint>();
-        approximation.add(approx1f);
-
-        // Draw outline onto frame
-        if (approximation.get(0).isContinuous()) {
-            Mat withContour = new Mat();
-            src.copyTo(withContour);
-            Imgproc.drawContours(withContour, approximation, 0, new Scalar(0, 255, 0), 3);
-            BufferedImage imageWithOutline = mat2BufferedImage(withContour);
-            return imageWithOutline;
-        } else {
-            return mat2BufferedImage(src);
+    /**
+     * Finds the QR code in the specified image. Returns the vertices of the
+     * outline in contour order, or an empty array if no code was found. The
+     * image is not modified.
+     */
+    public Point[] locateQR(BufferedImage bimg) {
+        Mat mat = bufferedImage2Mat(bimg);
+        try {
+            return locateQR(mat);
+        } finally {
+            mat.release();
         }
     }
 
-    public Mat bufferedImage2Mat(BufferedImage bimg) {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    private Point[] locateQR(Mat src) {
+        Mat gray = QRDecoder.toGray(src);
         try {
-            ImageIO.write(bimg, "png", byteArrayOutputStream);
-            byteArrayOutputStream.flush();
-            return Imgcodecs.imdecode(new MatOfByte(byteArrayOutputStream.toByteArray()), Imgcodecs.IMREAD_UNCHANGED);
-        } catch (IOException e) {
-            e.printStackTrace();
+            return decoder.locate(gray);
+        } finally {
+            if (gray != src) {
+                gray.release();
+            }
         }
-        return null;
     }
 
-    public BufferedImage mat2BufferedImage(Mat mat) {
-        MatOfByte matOfByte = new MatOfByte();
-        Imgcodecs.imencode(".jpg", mat, matOfByte);
-        try {
-            return ImageIO.read(new ByteArrayInputStream(matOfByte.toArray()));
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Returns the specified vertices as a polygon that can be drawn with Java2D.
+     */
+    public static Polygon toPolygon(Point[] vertices) {
+        Polygon polygon = new Polygon();
+        for (Point p : vertices) {
+            polygon.addPoint((int) Math.round(p.x), (int) Math.round(p.y));
         }
-        return null;
+        return polygon;
+    }
+
+    public Mat bufferedImage2Mat(BufferedImage bimg) {
+        return QRDecoder.toMat(bimg);
+    }
+
+    public BufferedImage mat2BufferedImage(Mat mat) {
+        return QRDecoder.toBufferedImage(mat);
     }
 
     /**
@@ -384,10 +593,57 @@ public class Camera {
         return copy;
     }
 
-    public int getFPS() {
+    /**
+     * Stops any scans in progress and releases the frame grabber.
+     */
+    public synchronized void release() {
+        if (scanPool != null) {
+            scanPool.shutdownNow();
+        }
+        if (grabber == null) {
+            return;
+        }
+        try {
+            grabber.release();
+        } catch (Exception e) {
+            System.out.println("Error releasing camera!");
+        }
+    }
+
+    /**
+     * Returns the most recently grabbed frame without any settings applied, or
+     * null if the last grab failed.
+     */
+    public BufferedImage getRawFrame() {
+        return rawFrame;
+    }
+
+    /**
+     * Returns the vertices of the QR code outline found in the current frame, in
+     * the unmirrored frame's coordinates. Returns an empty array if no code was
+     * found, or null if the frame was not scanned.
+     */
+    public Point[] getQROutline() {
+        return qrOutline;
+    }
+
+    public boolean isMirrored() {
+        return mirrored;
+    }
+
+    public synchronized int getFPS() {
+        start();
         return FPS;
     }
 
+    /**
+     * Makes the camera find codes with the specified detector from the next
+     * frame on.
+     */
+    public void setDetector(Detector detector) {
+        decoder = new QRDecoder(detector);
+    }
+
     public void setScanningQR(boolean scanningQR) {
         this.scanningQR = scanningQR;
     }
@@ -404,4 +660,20 @@ public class Camera {
         this.bwThreshold = bwThreshold;
     }
 
+    /**
+     * Makes saveImage write through the specified writer, e.g. into another
+     * directory or with another compression level.
+     */
+    public void setImageWriter(AsyncImageWriter imageWriter) {
+        this.imageWriter = imageWriter;
+    }
+
+    /**
+     * Sets whether the outline is only searched for in frames that pass the frame
+     * gate, rather than in every frame.
+     */
+    public void setGating(boolean gating) {
+        this.gating = gating;
+    }
+
 }
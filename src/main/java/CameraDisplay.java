@@ -1,35 +1,89 @@
-import nu.pattern.OpenCV;
-import org.bytedeco.javacv.CanvasFrame;
+import org.opencv.core.Mat;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.datatransfer.Clipboard;
 import java.awt.datatransfer.StringSelection;
 import java.awt.image.BufferedImage;
+import java.io.IOException;
 import java.net.URI;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 public class CameraDisplay {
 
+    // How long the scan button keeps trying recent frames before giving up
+    public static final Duration SCAN_TIMEOUT = Duration.ofSeconds(2);
+
     private final Camera camera;
-    private final CanvasFrame canvas;
+    private final JFrame frame;
+    private final OverlayPanel overlayPanel;
+    private volatile QRDecoder decoder = new QRDecoder();
+    private final QRFusion fusion = new QRFusion();
+    private final FrameGate gate = new FrameGate();
+    private volatile boolean gating = true;
+    private boolean fusing = false;
+    private volatile boolean autoReading = false;
+    private volatile String lastReading;
+    private final ScanLog scanLog;
 
+    /**
+     * Usage: {@code CameraDisplay [--log=DIR]}, where with --log every reading
+     * is also appended to the ScanLog in DIR.
+     */
     public static void main(String[] args) {
-        new CameraDisplay();
+        String logDirectory = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--log=")) {
+                logDirectory = value;
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        new CameraDisplay(logDirectory);
     }
 
     public CameraDisplay() {
-        OpenCV.loadLocally();
+        this(null);
+    }
 
+    /**
+     * Opens the camera window, keeping a history of every reading in the
+     * ScanLog in the specified directory, or none if it is null.
+     */
+    public CameraDisplay(String logDirectory) {
         camera = new Camera();
+        camera.start();
+
+        // Scanning still works if the log cannot be opened
+        ScanLog log = null;
+        if (logDirectory != null) {
+            try {
+                log = new ScanLog(Paths.get(logDirectory));
+                Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+            } catch (IOException e) {
+                System.out.println("Error opening scan log!");
+                e.printStackTrace();
+            }
+        }
+        scanLog = log;
 
         // Initialize display window
-        canvas = new CanvasFrame("Camera");
-        canvas.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        canvas.setLayout(new FlowLayout());
-        canvas.setPreferredSize(new Dimension(740, 600));
+        frame = new JFrame("Camera");
+        frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setLayout(new FlowLayout());
+        frame.setPreferredSize(new Dimension(740, 600));
+
+        // Camera view, with the QR outline and readings drawn as an overlay
+        BufferedImage firstFrame = camera.getRawFrame();
+        overlayPanel = firstFrame != null
+                ? new OverlayPanel(firstFrame.getWidth(), firstFrame.getHeight())
+                : new OverlayPanel(640, 480);
+        frame.add(overlayPanel);
 
         // Set system theme
         try {
@@ -38,40 +92,74 @@ public class CameraDisplay {
             System.out.println("Error setting system theme!");
         }
 
-        // Scan QR Code button
+        // Scan QR Code button, which reads from whichever recent frame decodes
+        // first, in the background so the display keeps running
         JButton scanQRButton = new JButton("Scan QR Code!");
         scanQRButton.addActionListener((e) -> {
-            try {
-                BufferedImage qrImage = camera.scanQR();
-                displayQRReading(qrImage);
-            } catch (QRNotFoundException ex) {
-                JOptionPane.showMessageDialog(null, ex.getMessage());
-            }
+            scanQRButton.setEnabled(false);
+            camera.scanQRAsync(SCAN_TIMEOUT).whenComplete((scan, ex) -> SwingUtilities.invokeLater(() -> {
+                scanQRButton.setEnabled(true);
+                if (scan != null) {
+                    DecodeResult result = scan.detection().getDecodeResult();
+                    logReading(result);
+                    displayQRReading(result.getGrid(), result.getText());
+                } else {
+                    JOptionPane.showMessageDialog(null, ex.getMessage());
+                }
+            }));
         });
-        canvas.add(scanQRButton);
+        frame.add(scanQRButton);
 
         // Take Picture button
         JButton shutterButton = new JButton("Take Picture!");
         shutterButton.addActionListener((e) -> camera.displayFrame());
-        canvas.add(shutterButton);
+        frame.add(shutterButton);
 
         // Show QR Outline check box
         JCheckBox scanningQRCheckBox = new JCheckBox("Show QR Outline");
         scanningQRCheckBox.setSelected(true);
         scanningQRCheckBox.addActionListener((e) -> camera.setScanningQR(scanningQRCheckBox.isSelected()));
-        canvas.add(scanningQRCheckBox);
+        frame.add(scanningQRCheckBox);
 
         // Toggle BW/Color check box
         JCheckBox bwCheckBox = new JCheckBox("Black/White");
         bwCheckBox.setSelected(false);
         bwCheckBox.addActionListener((e) -> camera.setBw(bwCheckBox.isSelected()));
-        canvas.add(bwCheckBox);
+        frame.add(bwCheckBox);
 
         // Mirror Image check box
         JCheckBox mirrorCheckBox = new JCheckBox("Mirrored");
         mirrorCheckBox.setSelected(false);
         mirrorCheckBox.addActionListener((e) -> camera.setMirrored(mirrorCheckBox.isSelected()));
-        canvas.add(mirrorCheckBox);
+        frame.add(mirrorCheckBox);
+
+        // Auto Read check box, which reads steady codes over several frames
+        JCheckBox autoReadCheckBox = new JCheckBox("Auto Read");
+        autoReadCheckBox.setSelected(false);
+        autoReadCheckBox.addActionListener((e) -> {
+            autoReading = autoReadCheckBox.isSelected();
+            fusion.reset();
+        });
+        frame.add(autoReadCheckBox);
+
+        // Detector drop-down, to compare the detection backends on this camera
+        JComboBox<String> detectorDropdown = new JComboBox<>(Detector.NAMES);
+        detectorDropdown.addActionListener((e) -> {
+            Detector detector = Detector.forName((String) detectorDropdown.getSelectedItem());
+            camera.setDetector(detector);
+            decoder = new QRDecoder(detector);
+            fusion.reset();
+        });
+        frame.add(detectorDropdown);
+
+        // Skip Still/Blurry check box, which only runs detection on frames worth it
+        JCheckBox gateCheckBox = new JCheckBox("Skip Still/Blurry");
+        gateCheckBox.setSelected(true);
+        gateCheckBox.addActionListener((e) -> {
+            gating = gateCheckBox.isSelected();
+            camera.setGating(gating);
+        });
+        frame.add(gateCheckBox);
 
         // Black/White Threshold slider
         JSlider bwSlider = new JSlider(0, 255, 150);
@@ -80,44 +168,105 @@ public class CameraDisplay {
             camera.setBwThreshold(bwSlider.getValue());
             bwSlider.setBorder(BorderFactory.createTitledBorder("Black/White Threshold: " + bwSlider.getValue()));
         });
-        canvas.add(bwSlider);
+        frame.add(bwSlider);
+
+        frame.pack();
+        frame.setVisible(true);
 
         // Start camera capture
         ScheduledExecutorService executorService = Executors.newSingleThreadScheduledExecutor();
+        final long[] lastTick = { System.nanoTime() };
         executorService.scheduleAtFixedRate(() -> {
-            BufferedImage currentFrame = camera.getCurrentFrame();
-            canvas.showImage(currentFrame);
-
-//            try {
-//                BufferedImage qrImage = camera.scanQR();
-//                boolean[][] grid = QRUtil.qrToBooleanGrid(qrImage);
-//                String text = QRUtil.decode(grid);
-//                camera.displayImage(QRUtil.booleanGridToQR(grid));
-//                JOptionPane.showMessageDialog(null, text);
-//            } catch (Exception ex) {
-//            }
+            long start = System.nanoTime();
+
+            // Only apply the display settings if the frame is going to be shown
+            boolean visible = overlayPanel.isRenderable();
+            BufferedImage currentFrame = visible ? camera.getCurrentFrame() : camera.getCurrentFrame(false, false, false);
+
+            // Fuse this frame's evidence with the previous frames and stop once read
+            if (autoReading && camera.getRawFrame() != null && passesGate(camera.getRawFrame())) {
+                DetectionResult detection = decoder.decode(camera.getRawFrame());
+                DecodeResult result = fusion.update(detection.getCorners(), detection.getModuleDarkness());
+                fusing = detection.getCorners() != null && result == null;
+                if (result != null) {
+                    final DecodeResult reading = result;
+                    autoReading = false;
+                    lastReading = reading.getText();
+                    logReading(reading);
+                    SwingUtilities.invokeLater(() -> {
+                        autoReadCheckBox.setSelected(false);
+                        displayQRReading(reading.getGrid(), reading.getText());
+                    });
+                }
+            }
+
+            if (visible) {
+                double fps = 1e9 / (start - lastTick[0]);
+                long frameMillis = (System.nanoTime() - start) / 1_000_000;
+                String stats = String.format("%.1f fps, %d ms/frame", fps, frameMillis);
+                String text = lastReading != null ? "Read: " + lastReading : null;
+                overlayPanel.publish(new OverlayPanel.Snapshot(currentFrame, camera.getQROutline(),
+                        camera.isMirrored(), text, stats));
+            }
+            lastTick[0] = start;
 
         }, 0, 1000 / camera.getFPS(), TimeUnit.MILLISECONDS);
 
     }
 
+    /**
+     * Returns whether the specified frame is worth decoding, i.e. gating is off,
+     * a code is still being read over several frames, or the frame passes the
+     * gate.
+     */
+    private boolean passesGate(BufferedImage frame) {
+        if (!gating) {
+            return true;
+        }
+        if (fusing) {
+            gate.holdOpen();
+        }
+        Mat mat = QRDecoder.toMat(frame);
+        boolean passes = gate.evaluate(mat).shouldProcess();
+        mat.release();
+        return passes;
+    }
+
     public void displayQRReading(BufferedImage qrImage) {
+        // Decode QR code, repairing low-confidence modules if needed, and get hidden
+        // text and bit.ly link
+        double[][] darkness = QRUtil.sampleModules(qrImage);
+        boolean[][] grid = new boolean[7][7];
+        String text;
+        try {
+            DecodeResult result = QRUtil.softDecode(darkness);
+            grid = result.getGrid();
+            text = result.getText();
+            logReading(result);
+        } catch (InvalidQRException ex) {
+            for (int r = 0; r < grid.length; r++) {
+                for (int c = 0; c < grid[r].length; c++) {
+                    grid[r][c] = darkness[r][c] > 0.5;
+                }
+            }
+            text = null;
+            System.out.println(ex.getMessage());
+        }
+        displayQRReading(grid, text);
+    }
+
+    /**
+     * Displays the specified QR reading in a new window. The text is null if the
+     * reading is invalid.
+     */
+    public void displayQRReading(boolean[][] grid, String text) {
         // Initialize new frame
         JFrame window = new JFrame("QR Code");
         window.setPreferredSize(new Dimension(650, 395));
         window.getContentPane().setLayout(null);
         window.setVisible(true);
 
-        // Decode QR code, get hidden text and bit.ly link
-        boolean[][] grid = QRUtil.qrToBooleanGrid(qrImage);
         BufferedImage qrDisplayImage = QRUtil.booleanGridToQR(grid);
-        String text;
-        try {
-            text = QRUtil.decode(grid);
-        } catch (InvalidQRException ex) {
-            text = null;
-            System.out.println(ex.getMessage());
-        }
         final String encryptedText = text;
         final String bitlyURL;
         if (encryptedText != null) {
@@ -179,6 +328,12 @@ public class CameraDisplay {
         window.pack();
     }
 
+    private void logReading(DecodeResult result) {
+        if (scanLog != null) {
+            scanLog.append("camera", result);
+        }
+    }
+
     public void copyToClipboard(String text) {
         StringSelection stringSelection = new StringSelection(text);
         Clipboard clipboard = Toolkit.getDefaultToolkit().getSystemClipboard();
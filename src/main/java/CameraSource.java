@@ -0,0 +1,37 @@
+import org.opencv.core.Mat;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A frame source backed by a Camera, i.e. a capture device or video file.
+ */
+public class CameraSource implements FrameSource {
+
+    private final String name;
+    private final Camera camera;
+
+    public CameraSource(String name, Camera camera) {
+        this.name = name;
+        this.camera = camera;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Mat grab() {
+        camera.getCurrentFrame(false, false, false);
+        BufferedImage frame = camera.getRawFrame();
+
+        // The grabber reuses its image for the next frame, so hand out a copy
+        return frame != null ? QRDecoder.toMat(frame) : null;
+    }
+
+    @Override
+    public void close() {
+        camera.release();
+    }
+
+}
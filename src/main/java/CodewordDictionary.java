@@ -0,0 +1,400 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * The set of codes that can validly be read, e.g. a deployment's inventory,
+ * for validating readings and correcting ones with a few wrong modules.
+ * Readings are matched in all four orientations, so a reading can be looked
+ * up as sampled, even when its orientation bits are wrong.
+ * <p>
+ * Codes are stored as canonical codewords (see QRUtil.pack) and matched by
+ * Hamming distance with multi-index hashing. The four orientation bits are the
+ * same in every canonical codeword, and the other 45 bits are split into
+ * CHUNKS substrings that each index the codes by their value. A codeword
+ * within distance d of a reading differs from it in at most d / CHUNKS bits
+ * of some substring, so only the buckets within that distance of the
+ * reading's substrings are compared. Each bucket holds the rest of its
+ * codewords' bits inline, so it is scanned sequentially.
+ * <p>
+ * Valid codes can be as little as two modules apart, so a reading only
+ * resolves to a code if it is that code exactly or no other code is within
+ * the maximum distance. Exact readings are looked up first, with a binary
+ * search. A dictionary is immutable and can be used from any
+ * number of threads.
+ * <p>
+ * Usage: {@code CodewordDictionary [--distance=D] [--bench=N] [FILE]}, where FILE lists one code per line.
+ */
+public class CodewordDictionary {
+
+    public static final int DEFAULT_MAX_DISTANCE = 2;
+    // Buckets are probed within MAX_DISTANCE / CHUNKS bits of the reading,
+    // and the number of probes grows quickly beyond 2
+    public static final int MAX_DISTANCE = 8;
+
+    /** Returned by find when no code is within the distance. */
+    public static final int NOT_FOUND = -1;
+    /** Returned by find when more than one code is within the distance. */
+    public static final int AMBIGUOUS = -2;
+
+    // The orientation bits at (1, 1), (1, 5), (5, 1) and (5, 5), of which only
+    // the first is off in a canonical codeword
+    private static final long ORIENTATION_MASK = 1L << 40 | 1L << 36 | 1L << 12 | 1L << 8;
+    private static final long ORIENTATION_BITS = 1L << 36 | 1L << 12 | 1L << 8;
+    private static final int CHUNKS = 3;
+    private static final int CHUNK_BITS = 15;
+    private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+    // A bucket entry holds the 30 bits outside its chunk above the code's index
+    private static final int INDEX_BITS = 31;
+
+    // The codeword a row's 7 bits turn into when rotated a quarter turn
+    // counterclockwise, for each row and value
+    private static final long[][] QUARTER_TURN = quarterTurn();
+
+    private final long[] codes;
+    // For each chunk, the codes grouped by the chunk's value: bucket k is
+    // buckets[c][start[c][k]] up to buckets[c][start[c][k + 1]]
+    private final int[][] start = new int[CHUNKS][];
+    private final long[][] buckets = new long[CHUNKS][];
+
+    /**
+     * Creates a dictionary of the specified codewords, each in the canonical
+     * orientation returned by QRUtil.orient. Duplicates are ignored.
+     */
+    public CodewordDictionary(long[] codewords) {
+        codes = Arrays.stream(codewords).sorted().distinct().toArray();
+        for (long codeword : codes) {
+            if ((codeword & ORIENTATION_MASK) != ORIENTATION_BITS) {
+                throw new IllegalArgumentException("Not a canonical codeword: " + Long.toHexString(codeword));
+            }
+        }
+
+        // Bucket the codes by each chunk with a counting sort
+        for (int c = 0; c < CHUNKS; c++) {
+            int[] chunkStart = new int[(1 << CHUNK_BITS) + 1];
+            for (long codeword : codes) {
+                chunkStart[chunk(strip(codeword), c) + 1]++;
+            }
+            for (int k = 1; k < chunkStart.length; k++) {
+                chunkStart[k] += chunkStart[k - 1];
+            }
+            long[] chunkBuckets = new long[codes.length];
+            int[] next = Arrays.copyOf(chunkStart, chunkStart.length - 1);
+            for (int i = 0; i < codes.length; i++) {
+                long stripped = strip(codes[i]);
+                chunkBuckets[next[chunk(stripped, c)]++] = rest(stripped, c) << INDEX_BITS | i;
+            }
+            start[c] = chunkStart;
+            buckets[c] = chunkBuckets;
+        }
+    }
+
+    /**
+     * Creates a dictionary of the codes that encode the specified texts.
+     */
+    public static CodewordDictionary of(Collection<String> texts) {
+        return new CodewordDictionary(texts.stream().mapToLong(QRUtil::codeword).toArray());
+    }
+
+    /**
+     * Loads a dictionary from the specified text file, which lists one code per
+     * line. Blank lines are skipped.
+     */
+    public static CodewordDictionary load(Path path) throws IOException {
+        long[] codewords = new long[1024];
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                if (count == codewords.length) {
+                    codewords = Arrays.copyOf(codewords, count * 2);
+                }
+                codewords[count++] = QRUtil.codeword(line.strip());
+            }
+        }
+        return new CodewordDictionary(Arrays.copyOf(codewords, count));
+    }
+
+    public static void main(String[] args) throws IOException {
+        int maxDistance = DEFAULT_MAX_DISTANCE;
+        int bench = 0;
+        String path = null;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--distance=")) {
+                maxDistance = Integer.parseInt(value);
+            } else if (arg.startsWith("--bench=")) {
+                bench = Integer.parseInt(value);
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            } else {
+                path = arg;
+            }
+        }
+
+        // Without a file, use random codes, as many as the benchmark looks up
+        Random rng = new Random(0);
+        long start = System.nanoTime();
+        CodewordDictionary dictionary;
+        if (path != null) {
+            dictionary = load(Paths.get(path));
+        } else {
+            long[] codewords = new long[Math.max(bench, 1)];
+            for (int i = 0; i < codewords.length; i++) {
+                codewords[i] = QRUtil.codeword(randomText(rng));
+            }
+            dictionary = new CodewordDictionary(codewords);
+        }
+        System.out.printf("Built a dictionary of %d codes in %.2f s%n", dictionary.size(),
+                (System.nanoTime() - start) / 1e9);
+        if (bench <= 0) {
+            return;
+        }
+
+        // Look up codes from the dictionary in random orientations, with 0 up to
+        // maxDistance + 1 random modules flipped, and report the rate and how
+        // the readings resolved for each number of flipped modules
+        for (int flips = 0; flips <= maxDistance + 1; flips++) {
+            int[] codes = new int[bench];
+            long[] readings = new long[bench];
+            for (int i = 0; i < bench; i++) {
+                codes[i] = rng.nextInt(dictionary.size());
+                long entry = dictionary.getEntry(codes[i] << 2 | rng.nextInt(4));
+                long reading = entry;
+                while (Long.bitCount(reading ^ entry) < flips) {
+                    reading ^= 1L << rng.nextInt(49);
+                }
+                readings[i] = reading;
+            }
+
+            // Best of three rounds, so that JIT compilation does not count
+            double bestSeconds = Double.MAX_VALUE;
+            int correct = 0, wrong = 0, notFound = 0, ambiguous = 0;
+            for (int round = 0; round < 3; round++) {
+                correct = wrong = notFound = ambiguous = 0;
+                long roundStart = System.nanoTime();
+                for (int i = 0; i < bench; i++) {
+                    int match = dictionary.find(readings[i], maxDistance);
+                    if (match == NOT_FOUND) {
+                        notFound++;
+                    } else if (match == AMBIGUOUS) {
+                        ambiguous++;
+                    } else if (match >> 2 == codes[i]) {
+                        correct++;
+                    } else {
+                        wrong++;
+                    }
+                }
+                bestSeconds = Math.min(bestSeconds, (System.nanoTime() - roundStart) / 1e9);
+            }
+            System.out.printf("%d flipped: %.2f M lookups/s, %d correct, %d wrong, %d not found, %d ambiguous%n",
+                    flips, bench / bestSeconds / 1e6, correct, wrong, notFound, ambiguous);
+        }
+    }
+
+    /**
+     * Returns a match for the specified reading, in any orientation: the index
+     * of its code times 4 plus the number of quarter turns that orient the
+     * reading, if the reading is a code exactly or exactly one code is within
+     * the specified Hamming distance. Otherwise returns NOT_FOUND or AMBIGUOUS.
+     */
+    public int find(long reading, int maxDistance) {
+        if (maxDistance < 0 || maxDistance > MAX_DISTANCE) {
+            throw new IllegalArgumentException("Distance must be between 0 and " + MAX_DISTANCE + ": " + maxDistance);
+        }
+        // A reading that is a code exactly resolves to it whatever other codes
+        // are near, and it is also the common case, so look for it first. Only
+        // one orientation has the orientation bits right.
+        long oriented = reading;
+        for (int turns = 0; turns < 4; turns++, oriented = rotate(oriented)) {
+            if ((oriented & ORIENTATION_MASK) == ORIENTATION_BITS) {
+                int index = indexOf(oriented);
+                if (index >= 0) {
+                    return index << 2 | turns;
+                }
+                break;
+            }
+        }
+
+        int best = NOT_FOUND;
+        int bestDistance = Integer.MAX_VALUE;
+        oriented = reading;
+        for (int turns = 0; turns < 4; turns++, oriented = rotate(oriented)) {
+            // Wrong orientation bits use up part of the distance, which leaves
+            // fewer chunks to probe: m chunks probed within t bits find every
+            // code within m * (t + 1) - 1 bits
+            int orientationDistance = Long.bitCount((oriented ^ ORIENTATION_BITS) & ORIENTATION_MASK);
+            int budget = maxDistance - orientationDistance;
+            if (budget <= 0) {
+                int index = budget == 0 ? indexOf(oriented) : NOT_FOUND;
+                if (index >= 0) {
+                    if (best >= 0 && index != best >> 2) {
+                        return AMBIGUOUS;
+                    }
+                    if (orientationDistance < bestDistance) {
+                        best = index << 2 | turns;
+                        bestDistance = orientationDistance;
+                    }
+                }
+                continue;
+            }
+            int chunkDistance = budget / CHUNKS;
+            int chunks = Math.min(CHUNKS, budget / (chunkDistance + 1) + 1);
+            long stripped = strip(oriented);
+
+            for (int c = 0; c < chunks; c++) {
+                int key = chunk(stripped, c);
+                long rest = rest(stripped, c);
+                int[] chunkStart = start[c];
+                long[] chunkBuckets = buckets[c];
+
+                // Probe the key itself (i = -1), the key with bit i flipped
+                // (j = i) and the key with bits i < j flipped
+                int singles = chunkDistance >= 1 ? CHUNK_BITS : 0;
+                for (int i = -1; i < singles; i++) {
+                    int pairs = chunkDistance >= 2 && i >= 0 ? CHUNK_BITS : i + 1;
+                    for (int j = i; j < pairs; j++) {
+                        int probe = key ^ (i >= 0 ? 1 << i : 0) ^ (j > i ? 1 << j : 0);
+                        int probeDistance = orientationDistance + (i >= 0 ? 1 : 0) + (j > i ? 1 : 0);
+                        for (int k = chunkStart[probe]; k < chunkStart[probe + 1]; k++) {
+                            long entry = chunkBuckets[k];
+                            int distance = probeDistance + Long.bitCount((entry >>> INDEX_BITS) ^ rest);
+                            if (distance > maxDistance) {
+                                continue;
+                            }
+                            int index = (int) entry & (1 << INDEX_BITS) - 1;
+                            if (best >= 0 && index != best >> 2) {
+                                return AMBIGUOUS;
+                            }
+                            if (distance < bestDistance) {
+                                best = index << 2 | turns;
+                                bestDistance = distance;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the index of the specified canonical codeword, or NOT_FOUND if it
+     * is not a code. The codes are sorted, so each bucket of the first chunk,
+     * which holds the lowest bits, is sorted by the rest of the bits.
+     */
+    private int indexOf(long codeword) {
+        long stripped = strip(codeword);
+        int key = chunk(stripped, 0);
+        long rest = rest(stripped, 0);
+        int i = Arrays.binarySearch(buckets[0], start[0][key], start[0][key + 1], rest << INDEX_BITS);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        if (i < start[0][key + 1] && buckets[0][i] >>> INDEX_BITS == rest) {
+            return (int) buckets[0][i] & (1 << INDEX_BITS) - 1;
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Returns whether the specified reading, in any orientation, is exactly one
+     * of the codes.
+     */
+    public boolean contains(long reading) {
+        return find(reading, 0) >= 0;
+    }
+
+    /**
+     * Returns the codeword of the specified match's code, in the orientation
+     * the reading was in.
+     */
+    public long getEntry(int match) {
+        long codeword = codes[match >> 2];
+        for (int turns = (4 - (match & 3)) % 4; turns > 0; turns--) {
+            codeword = rotate(codeword);
+        }
+        return codeword;
+    }
+
+    /**
+     * Returns the codeword of the specified match's code, in the canonical
+     * orientation.
+     */
+    public long getCodeword(int match) {
+        return codes[match >> 2];
+    }
+
+    /**
+     * Returns the number of codes.
+     */
+    public int size() {
+        return codes.length;
+    }
+
+    /**
+     * Returns the 45 bits of the specified codeword other than its orientation
+     * bits, in the same order.
+     */
+    private static long strip(long codeword) {
+        return (codeword >>> 41) << 37 | ((codeword >>> 37) & 0x7) << 34 | ((codeword >>> 13) & 0x7FFFFF) << 11
+                | ((codeword >>> 9) & 0x7) << 8 | codeword & 0xFF;
+    }
+
+    private static int chunk(long stripped, int c) {
+        return (int) (stripped >>> (c * CHUNK_BITS)) & CHUNK_MASK;
+    }
+
+    /**
+     * Returns the 30 stripped bits outside the specified chunk.
+     */
+    private static long rest(long stripped, int c) {
+        int shift = c * CHUNK_BITS;
+        return (stripped >>> (shift + CHUNK_BITS)) << shift | stripped & ((1L << shift) - 1);
+    }
+
+    /**
+     * Returns the specified codeword rotated a quarter turn counterclockwise,
+     * like QRUtil.rotate does to its grid.
+     */
+    private static long rotate(long codeword) {
+        long rotated = 0;
+        for (int row = 0; row < 7; row++) {
+            rotated |= QUARTER_TURN[row][(int) (codeword >>> (42 - 7 * row)) & 0x7F];
+        }
+        return rotated;
+    }
+
+    private static long[][] quarterTurn() {
+        long[][] turn = new long[7][128];
+        for (int row = 0; row < 7; row++) {
+            for (int value = 0; value < 128; value++) {
+                long codeword = (long) value << (42 - 7 * row);
+                turn[row][value] = QRUtil.pack(QRUtil.rotate(QRUtil.unpack(codeword), 90));
+            }
+        }
+        return turn;
+    }
+
+    /**
+     * Returns 7 random characters that can be encoded, excluding the ignore
+     * character and the space.
+     */
+    private static String randomText(Random rng) {
+        char[] text = new char[7];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = QRUtil.numToChar(rng.nextInt(62));
+        }
+        return new String(text);
+    }
+
+}
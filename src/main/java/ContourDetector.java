@@ -0,0 +1,201 @@
+import org.opencv.core.Point;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds codes by their outline: edges are detected with Canny and traced with
+ * findContours, and the largest quadrilateral contour that has the code's
+ * border is taken to be the code.
+ */
+public class ContourDetector implements Detector {
+
+    public static final int MIN_QR_SIZE = 24; // Pixels along each side of the bounding box
+    public static final double MAX_ASPECT_RATIO = 3;
+    public static final double MIN_SOLIDITY = 0.85;
+
+    // How much larger a code is than the inner edge of its black border
+    private static final double INNER_EDGE_GROWTH = Math.pow(
+            (double) QRUtil.IMAGE_SIZE / (QRUtil.IMAGE_SIZE - 2 * QRUtil.BLACK_BORDER), 2);
+
+    /**
+     * Finds the QR code outline in the specified grayscale image, taken to be the
+     * largest quadrilateral contour that has the code's black and white border.
+     * Returns the vertices of the outline in contour order, or an empty array if
+     * no code was found.
+     * <p>
+     * Contours are put through a cascade of filters, cheapest first, so that the
+     * polygon approximation and border check only run on the few contours that
+     * could be a code.
+     */
+    @Override
+    public Point[] locate(Mat gray) {
+        return locate(gray, null, 0);
+    }
+
+    /**
+     * Finds the QR code outline as above and, in the same pass, adds to the
+     * specified list the bounding boxes of up to the specified number of
+     * contours that could be a code's border going by their nesting, size and
+     * solidity, largest first and leaving out those within a larger one. Unlike
+     * the outline, these do not have to be quadrilaterals, so they still point
+     * at codes whose edges are bent by lens distortion.
+     */
+    @Override
+    public Point[] locate(Mat gray, List<Rect> candidates, int maxCandidates) {
+        // Blur image to smooth out noise
+        Mat blur = new Mat();
+        Imgproc.blur(gray, blur, new Size(3, 3));
+
+        // Detecting edges
+        Mat edges = new Mat();
+        double threshold1 = 60;
+        Imgproc.Canny(blur, edges, threshold1, threshold1 * 3);
+        blur.release();
+
+        List<MatOfPoint> contours = new ArrayList<MatOfPoint>();
+        Mat hierarchy = new Mat();
+
+        // Keep the full tree, since the code may sit inside a larger box or screen
+        Imgproc.findContours(edges, contours, hierarchy, Imgproc.RETR_TREE, Imgproc.CHAIN_APPROX_SIMPLE);
+        edges.release();
+        if (contours.isEmpty()) {
+            return new Point[0];
+        }
+
+        // Each entry is [next, previous, first child, parent]
+        int[] tree = new int[contours.size() * 4];
+        hierarchy.get(0, 0, tree);
+
+        MatOfPoint2f largestRectContour = new MatOfPoint2f();
+        double largestArea = 0;
+        List<Rect> regions = new ArrayList<>();
+        List<Double> regionAreas = new ArrayList<>();
+
+        // Gets the rectangular contour with the largest enclosed area
+        for (int i = 0; i < contours.size(); i++) {
+            MatOfPoint contour = contours.get(i);
+
+            // The border's inner edge and the modules are nested two levels down
+            int child = tree[i * 4 + 2];
+            if (child < 0 || tree[child * 4 + 2] < 0) {
+                continue;
+            }
+
+            // Rejects contours that are too small or too elongated to be a code
+            Rect bounds = Imgproc.boundingRect(contour);
+            if (bounds.width < MIN_QR_SIZE || bounds.height < MIN_QR_SIZE
+                    || bounds.width > bounds.height * MAX_ASPECT_RATIO
+                    || bounds.height > bounds.width * MAX_ASPECT_RATIO) {
+                continue;
+            }
+
+            // Finds the area enclosed by the contour
+            double contourArea = Imgproc.contourArea(contour);
+            if (contourArea < MIN_QR_SIZE * MIN_QR_SIZE) {
+                continue;
+            }
+            Boolean solid = null;
+            if (candidates != null) {
+                solid = contourArea >= MIN_SOLIDITY * hullArea(contour);
+                if (solid) {
+                    addRegion(regions, regionAreas, bounds, contourArea);
+                }
+            }
+            if (contourArea * INNER_EDGE_GROWTH <= largestArea) {
+                continue;
+            }
+
+            MatOfPoint2f contour2f = new MatOfPoint2f();
+            contour.convertTo(contour2f, CvType.CV_32FC2);
+            double perimeter = Imgproc.arcLength(contour2f, true);
+            if (perimeter < MIN_QR_SIZE * 4) {
+                continue;
+            }
+
+            // Rejects concave shapes by comparing the area to that of the convex hull
+            if (solid == null ? contourArea < MIN_SOLIDITY * hullArea(contour) : !solid) {
+                continue;
+            }
+
+            // Approximates the contour as a polygon
+            MatOfPoint2f approxPolygon = new MatOfPoint2f();
+            Imgproc.approxPolyDP(contour2f, approxPolygon, perimeter * 0.04, true);
+
+            // If the contour has 4 edges and is the outer or inner edge of a code's
+            // border, make the code's outline the new largest rectangular contour
+            if (approxPolygon.total() == 4) {
+                Point[] outline = QRDecoder.borderOutline(gray, approxPolygon.toArray());
+                if (outline != null) {
+                    largestRectContour = new MatOfPoint2f(outline);
+                    largestArea = Imgproc.contourArea(largestRectContour);
+                }
+            }
+        }
+
+        // Busy high-resolution frames have thousands of contours, so free them
+        // now rather than whenever they are finalized
+        for (MatOfPoint contour : contours) {
+            contour.release();
+        }
+        hierarchy.release();
+
+        if (candidates != null) {
+            addOutermost(candidates, regions, maxCandidates);
+        }
+        return largestRectContour.toArray();
+    }
+
+    /**
+     * Inserts the specified bounding box into the list of regions sorted by
+     * area, largest first.
+     */
+    private static void addRegion(List<Rect> regions, List<Double> areas, Rect bounds, double area) {
+        int index = 0;
+        while (index < areas.size() && areas.get(index) >= area) {
+            index++;
+        }
+        regions.add(index, bounds);
+        areas.add(index, area);
+    }
+
+    /**
+     * Adds up to the specified number of the sorted regions to the candidates,
+     * skipping those within one already added: the inner edge of a border lies
+     * within the outer edge, as may a code within a larger box.
+     */
+    private static void addOutermost(List<Rect> candidates, List<Rect> regions, int max) {
+        for (Rect region : regions) {
+            if (candidates.size() >= max) {
+                return;
+            }
+            boolean covered = false;
+            for (Rect candidate : candidates) {
+                if (region.x >= candidate.x && region.y >= candidate.y
+                        && region.x + region.width <= candidate.x + candidate.width
+                        && region.y + region.height <= candidate.y + candidate.height) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                candidates.add(region);
+            }
+        }
+    }
+
+    private static double hullArea(MatOfPoint contour) {
+        MatOfInt hull = new MatOfInt();
+        Imgproc.convexHull(contour, hull);
+        Point[] points = contour.toArray();
+        int[] indices = hull.toArray();
+        Point[] hullPoints = new Point[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            hullPoints[i] = points[indices[i]];
+        }
+        return Imgproc.contourArea(new MatOfPoint2f(hullPoints));
+    }
+
+}
@@ -0,0 +1,42 @@
+/**
+ * The result of a successful soft-decision decode: the decoded text, the grid
+ * it was decoded from, how many modules had to be flipped to pass the
+ * orientation and checksum checks, and a confidence score between 0 and 1.
+ */
+public class DecodeResult {
+
+    private final String text;
+    private final boolean[][] grid;
+    private final int flippedModules;
+    private final double confidence;
+
+    public DecodeResult(String text, boolean[][] grid, int flippedModules, double confidence) {
+        this.text = text;
+        this.grid = grid;
+        this.flippedModules = flippedModules;
+        this.confidence = confidence;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public boolean[][] getGrid() {
+        return grid;
+    }
+
+    public int getFlippedModules() {
+        return flippedModules;
+    }
+
+    public double getConfidence() {
+        return confidence;
+    }
+
+    @Override
+    public String toString() {
+        return "DecodeResult{" + "text=" + text + ", flippedModules=" + flippedModules + ", confidence="
+                + String.format("%.3f", confidence) + "}";
+    }
+
+}
@@ -0,0 +1,168 @@
+import org.opencv.core.Point;
+
+/**
+ * The immutable result of running QRDecoder on one image: where the code was
+ * found, the sampled module grid, the decoded text, and how long each stage
+ * took. Arrays are copied on the way in and out, so a result can be shared
+ * freely between threads.
+ */
+public final class DetectionResult {
+
+    public enum Status {
+        /** No QR code outline was found in the image. */
+        NOT_FOUND,
+        /** An outline was found, but the modules did not decode. */
+        INVALID,
+        /** The code was found and decoded. */
+        DECODED
+    }
+
+    private final Status status;
+    private final Point[] outline;
+    private final Point[] corners;
+    private final double[][] moduleDarkness;
+    private final DecodeResult decodeResult;
+    private final long locateNanos;
+    private final long sampleNanos;
+    private final long decodeNanos;
+
+    public DetectionResult(Status status, Point[] outline, Point[] corners, double[][] moduleDarkness,
+                           DecodeResult decodeResult, long locateNanos, long sampleNanos, long decodeNanos) {
+        this.status = status;
+        this.outline = copyPoints(outline);
+        this.corners = copyPoints(corners);
+        this.moduleDarkness = copyGrid(moduleDarkness);
+        this.decodeResult = decodeResult == null ? null
+                : new DecodeResult(decodeResult.getText(), copyGrid(decodeResult.getGrid()),
+                decodeResult.getFlippedModules(), decodeResult.getConfidence());
+        this.locateNanos = locateNanos;
+        this.sampleNanos = sampleNanos;
+        this.decodeNanos = decodeNanos;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isDecoded() {
+        return status == Status.DECODED;
+    }
+
+    /**
+     * Returns the vertices of the code's outline in contour order, or null if no
+     * code was found.
+     */
+    public Point[] getOutline() {
+        return copyPoints(outline);
+    }
+
+    /**
+     * Returns the code's corners sorted as top-left, top-right, bottom-left and
+     * bottom-right, or null if no code was found.
+     */
+    public Point[] getCorners() {
+        return copyPoints(corners);
+    }
+
+    /**
+     * Returns the darkness of each module in the warped 7x7 grid, as returned by
+     * QRUtil.sampleModules, or null if no code was found.
+     */
+    public double[][] getModuleDarkness() {
+        return copyGrid(moduleDarkness);
+    }
+
+    /**
+     * Returns the decoded text, or null if the code was not decoded.
+     */
+    public String getText() {
+        return decodeResult == null ? null : decodeResult.getText();
+    }
+
+    /**
+     * Returns the full decode result, or null if the code was not decoded.
+     */
+    public DecodeResult getDecodeResult() {
+        return decodeResult == null ? null
+                : new DecodeResult(decodeResult.getText(), copyGrid(decodeResult.getGrid()),
+                decodeResult.getFlippedModules(), decodeResult.getConfidence());
+    }
+
+    public long getLocateNanos() {
+        return locateNanos;
+    }
+
+    public long getSampleNanos() {
+        return sampleNanos;
+    }
+
+    public long getDecodeNanos() {
+        return decodeNanos;
+    }
+
+    public long getTotalNanos() {
+        return locateNanos + sampleNanos + decodeNanos;
+    }
+
+    /**
+     * Returns a copy of this result with the outline and corners scaled by the
+     * specified factor and then shifted by the specified offset, e.g. to map a
+     * result from a subsampled copy or region of an image back onto the full
+     * image.
+     */
+    public DetectionResult transformed(double scale, double dx, double dy) {
+        return new DetectionResult(status, transform(outline, scale, dx, dy), transform(corners, scale, dx, dy),
+                moduleDarkness, decodeResult, locateNanos, sampleNanos, decodeNanos);
+    }
+
+    @Override
+    public String toString() {
+        return "DetectionResult{" + "status=" + status + ", text=" + getText() + ", totalMillis="
+                + String.format("%.2f", getTotalNanos() / 1e6) + "}";
+    }
+
+    private static Point[] copyPoints(Point[] points) {
+        if (points == null) {
+            return null;
+        }
+        Point[] copy = new Point[points.length];
+        for (int i = 0; i < points.length; i++) {
+            copy[i] = points[i] == null ? null : points[i].clone();
+        }
+        return copy;
+    }
+
+    private static Point[] transform(Point[] points, double scale, double dx, double dy) {
+        if (points == null) {
+            return null;
+        }
+        Point[] transformed = new Point[points.length];
+        for (int i = 0; i < points.length; i++) {
+            transformed[i] = points[i] == null ? null : new Point(points[i].x * scale + dx, points[i].y * scale + dy);
+        }
+        return transformed;
+    }
+
+    private static boolean[][] copyGrid(boolean[][] grid) {
+        if (grid == null) {
+            return null;
+        }
+        boolean[][] copy = new boolean[grid.length][];
+        for (int r = 0; r < grid.length; r++) {
+            copy[r] = grid[r].clone();
+        }
+        return copy;
+    }
+
+    private static double[][] copyGrid(double[][] grid) {
+        if (grid == null) {
+            return null;
+        }
+        double[][] copy = new double[grid.length][];
+        for (int r = 0; r < grid.length; r++) {
+            copy[r] = grid[r].clone();
+        }
+        return copy;
+    }
+
+}
@@ -0,0 +1,50 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+
+import java.util.List;
+
+/**
+ * Finds the outline of a QR code in a grayscale image. Detectors are used by
+ * QRDecoder and may be shared between threads, so implementations must not
+ * keep per-image state.
+ */
+public interface Detector {
+
+    /**
+     * The names accepted by forName, in the order they are offered to users.
+     */
+    String[] NAMES = { "contour", "scanline", "tiled" };
+
+    /**
+     * Returns the vertices of the code's outline in contour order, or an empty
+     * array if no code was found.
+     */
+    Point[] locate(Mat gray);
+
+    /**
+     * Finds the code's outline as above and, in the same pass, adds to the
+     * specified list the bounding boxes of up to the specified number of regions
+     * that could hold a code even if no outline was found there, largest first,
+     * e.g. for QRDecoder to undistort and search again. Detectors that cannot
+     * tell add none, which this default does.
+     */
+    default Point[] locate(Mat gray, List<Rect> candidates, int maxCandidates) {
+        return locate(gray);
+    }
+
+    /**
+     * Returns a new detector of the specified kind: "contour" for
+     * ContourDetector, "scanline" for ScanlineDetector, or "tiled" for a
+     * TiledDetector running ContourDetector on the common fork-join pool.
+     */
+    static Detector forName(String name) {
+        return switch (name) {
+            case "contour" -> new ContourDetector();
+            case "scanline" -> new ScanlineDetector();
+            case "tiled" -> new TiledDetector(new ContourDetector());
+            default -> throw new IllegalArgumentException("Unknown detector: " + name);
+        };
+    }
+
+}
@@ -0,0 +1,211 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * A cheap pre-stage that decides whether a frame is worth running detection
+ * on. It works on a downsampled grayscale copy of the frame: frames that have
+ * not changed since the last processed frame are skipped, as are frames too
+ * blurry to decode, going by the variance of their Laplacian. A flat, empty
+ * view also has a low Laplacian variance, so it is skipped as well. After a
+ * set number of skipped frames in a row, one frame is processed regardless.
+ * <p>
+ * A gate keeps the last processed frame of one stream, so each stream needs
+ * its own gate, used from one thread at a time.
+ */
+public class FrameGate {
+
+    // Sharpness is measured at this width, change on a much smaller thumbnail
+    // whose pixels each average a block of the frame, which removes sensor noise
+    public static final int SHARPNESS_WIDTH = 320;
+    public static final int THUMBNAIL_WIDTH = 80;
+
+    // A thumbnail pixel has changed if it differs by more than this many gray
+    // levels, and a frame has changed if at least MIN_CHANGED_PIXELS have. A few
+    // pixels are enough, so that a small code entering the view is noticed.
+    public static final double DEFAULT_PIXEL_CHANGE = 12;
+    public static final int DEFAULT_MIN_CHANGED_PIXELS = 2;
+    // The blurriest synthetic frames that still decode have a sharpness of about
+    // 9, measured at SHARPNESS_WIDTH; frames below this are not worth detecting
+    public static final double DEFAULT_MIN_SHARPNESS = 8;
+    public static final int DEFAULT_REFRESH_FRAMES = 30;
+
+    /**
+     * What the gate decided for a frame.
+     */
+    public enum Decision {
+        PROCESS, UNCHANGED, BLURRY;
+
+        public boolean shouldProcess() {
+            return this == PROCESS;
+        }
+    }
+
+    private final double pixelChange;
+    private final int minChangedPixels;
+    private final double minSharpness;
+    private final int refreshFrames;
+
+    private Mat reference;
+    private int skippedSinceProcessed = 0;
+    private boolean held = false;
+    private double lastSharpness = 0;
+    private int lastChangedPixels = 0;
+    private long processed = 0;
+    private long unchanged = 0;
+    private long blurry = 0;
+
+    public FrameGate() {
+        this(DEFAULT_PIXEL_CHANGE, DEFAULT_MIN_CHANGED_PIXELS, DEFAULT_MIN_SHARPNESS, DEFAULT_REFRESH_FRAMES);
+    }
+
+    public FrameGate(double pixelChange, int minChangedPixels, double minSharpness, int refreshFrames) {
+        Natives.load();
+
+        this.pixelChange = pixelChange;
+        this.minChangedPixels = minChangedPixels;
+        this.minSharpness = minSharpness;
+        this.refreshFrames = refreshFrames;
+    }
+
+    /**
+     * Decides whether detection should run on the specified frame, which may be
+     * grayscale or BGR. A processed frame becomes the reference that the next
+     * frames are compared against.
+     */
+    public Decision evaluate(Mat frame) {
+        // Downsample first, then convert, so that the conversion is cheap too
+        double scale = Math.min(1, (double) SHARPNESS_WIDTH / frame.cols());
+        Mat small = new Mat();
+        Imgproc.resize(frame, small, new Size(), scale, scale, Imgproc.INTER_AREA);
+        Mat gray = QRDecoder.toGray(small);
+        Mat thumbnail = new Mat();
+        double thumbnailScale = (double) THUMBNAIL_WIDTH / gray.cols();
+        Imgproc.resize(gray, thumbnail, new Size(), thumbnailScale, thumbnailScale, Imgproc.INTER_AREA);
+
+        try {
+            Decision decision = decide(gray, thumbnail);
+            if (decision.shouldProcess()) {
+                if (reference != null) {
+                    reference.release();
+                }
+                reference = thumbnail;
+                thumbnail = null;
+                skippedSinceProcessed = 0;
+                processed++;
+            } else {
+                skippedSinceProcessed++;
+                if (decision == Decision.UNCHANGED) {
+                    unchanged++;
+                } else {
+                    blurry++;
+                }
+            }
+            return decision;
+        } finally {
+            small.release();
+            gray.release();
+            if (thumbnail != null) {
+                thumbnail.release();
+            }
+        }
+    }
+
+    private Decision decide(Mat gray, Mat thumbnail) {
+        // Check for change first, since it is the cheaper test and the common
+        // case for a static view
+        boolean refresh = skippedSinceProcessed >= refreshFrames;
+        boolean hold = held;
+        held = false;
+        if (reference != null && reference.size().equals(thumbnail.size()) && !hold) {
+            Mat difference = new Mat();
+            Core.absdiff(thumbnail, reference, difference);
+            Imgproc.threshold(difference, difference, pixelChange, 255, Imgproc.THRESH_BINARY);
+            lastChangedPixels = Core.countNonZero(difference);
+            difference.release();
+            if (lastChangedPixels < minChangedPixels && !refresh) {
+                return Decision.UNCHANGED;
+            }
+        } else {
+            lastChangedPixels = thumbnail.rows() * thumbnail.cols();
+        }
+
+        lastSharpness = sharpness(gray);
+        if (lastSharpness < minSharpness && !refresh) {
+            return Decision.BLURRY;
+        }
+        return Decision.PROCESS;
+    }
+
+    /**
+     * Returns the variance of the Laplacian of the specified grayscale image,
+     * which drops sharply as the image gets blurrier.
+     */
+    public static double sharpness(Mat gray) {
+        Mat laplacian = new Mat();
+        Imgproc.Laplacian(gray, laplacian, CvType.CV_16S);
+        MatOfDouble mean = new MatOfDouble();
+        MatOfDouble stdDev = new MatOfDouble();
+        Core.meanStdDev(laplacian, mean, stdDev);
+        laplacian.release();
+        double sigma = stdDev.toArray()[0];
+        return sigma * sigma;
+    }
+
+    /**
+     * Lets the next frame through the change test, e.g. while a code found in the
+     * last frame is still being read over several frames, where even a nearly
+     * identical frame adds evidence.
+     */
+    public void holdOpen() {
+        held = true;
+    }
+
+    /**
+     * Forgets the reference frame, so that the next frame is processed if it is
+     * sharp enough.
+     */
+    public void reset() {
+        if (reference != null) {
+            reference.release();
+            reference = null;
+        }
+        skippedSinceProcessed = 0;
+    }
+
+    /**
+     * Returns the sharpness of the last frame that got as far as the sharpness
+     * test.
+     */
+    public double getLastSharpness() {
+        return lastSharpness;
+    }
+
+    /**
+     * Returns how many thumbnail pixels changed in the last frame.
+     */
+    public int getLastChangedPixels() {
+        return lastChangedPixels;
+    }
+
+    public long getProcessedCount() {
+        return processed;
+    }
+
+    public long getUnchangedCount() {
+        return unchanged;
+    }
+
+    public long getBlurryCount() {
+        return blurry;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("FrameGate{processed=%d, unchanged=%d, blurry=%d}", processed, unchanged, blurry);
+    }
+
+}
@@ -0,0 +1,54 @@
+import org.bytedeco.javacv.OpenCVFrameGrabber;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+
+/**
+ * A stream of frames from one camera, video file or generator. Each source is
+ * read by a single thread.
+ */
+public interface FrameSource extends AutoCloseable {
+
+    /**
+     * Returns the name used to tag this source's results and metrics.
+     */
+    String getName();
+
+    /**
+     * Returns the next frame, blocking until it is available, or null once the
+     * source has no more frames. The caller owns the returned Mat and should
+     * release it when done.
+     */
+    Mat grab();
+
+    @Override
+    void close();
+
+    /**
+     * Opens the source described by the specified spec: "device:N" for a camera,
+     * "file:PATH" for a video file, "y4m:PATH" or "raw:WxH:PATH" for a
+     * RawVideoReader, or "synthetic:SEED[:FRAMES]" for a SyntheticSource.
+     */
+    static FrameSource open(String spec) throws IOException {
+        String kind = spec.substring(0, Math.max(0, spec.indexOf(':')));
+        String value = spec.substring(spec.indexOf(':') + 1);
+        return switch (kind) {
+            case "device" -> new CameraSource(spec, new Camera(new OpenCVFrameGrabber(Integer.parseInt(value))));
+            case "file" -> new CameraSource(spec, new Camera(new OpenCVFrameGrabber(value)));
+            case "y4m" -> RawVideoReader.openY4M(Paths.get(value));
+            case "raw" -> {
+                String[] size = value.substring(0, value.indexOf(':')).split("x");
+                yield RawVideoReader.openRaw(Paths.get(value.substring(value.indexOf(':') + 1)),
+                        Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+            }
+            case "synthetic" -> {
+                String[] parts = value.split(":");
+                int frames = parts.length > 1 ? Integer.parseInt(parts[1]) : SyntheticSource.DEFAULT_FRAMES;
+                yield new SyntheticSource(spec, Long.parseLong(parts[0]), frames, SyntheticSource.DEFAULT_FPS);
+            }
+            default -> throw new IllegalArgumentException("Unknown source: " + spec);
+        };
+    }
+
+}
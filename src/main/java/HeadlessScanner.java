@@ -0,0 +1,175 @@
+import org.bytedeco.javacv.FrameGrabber;
+import org.bytedeco.javacv.OpenCVFrameGrabber;
+import org.opencv.core.Mat;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Scans QR codes from a camera without any UI and prints each new reading to
+ * standard output. Startup is kept short: the native library is loaded once,
+ * the camera is opened in the background while a few synthetic frames are
+ * pushed through detection and decoding to warm up the JIT, and the time to
+ * become ready is reported.
+ * <p>
+ * Frames go through a FrameGate before detection, so an unchanged or blurry
+ * view costs little CPU.
+ * <p>
+ * Usage: {@code HeadlessScanner [--device=N|--file=PATH] [--warmup=N] [--detector=NAME] [--log=DIR]
+ * [--dictionary=FILE] [--calibration=FILE] [--no-gate] [--once]}
+ * <p>
+ * With --log, every reading is also appended to the ScanLog in DIR. With
+ * --dictionary, only the codes listed in FILE are read (see
+ * CodewordDictionary). With --calibration, frames are undistorted around the
+ * code with the LensCalibration in FILE. --no-gate decodes every frame.
+ */
+public class HeadlessScanner {
+
+    public static final int DEFAULT_WARMUP_FRAMES = 5;
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        long mainStart = System.nanoTime();
+
+        int device = 0;
+        String file = null;
+        int warmupFrames = DEFAULT_WARMUP_FRAMES;
+        boolean once = false;
+        String detectorName = "contour";
+        String logDirectory = null;
+        String dictionaryFile = null;
+        String calibrationFile = null;
+        boolean gated = true;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--device=")) {
+                device = Integer.parseInt(value);
+            } else if (arg.startsWith("--file=")) {
+                file = value;
+            } else if (arg.startsWith("--warmup=")) {
+                warmupFrames = Integer.parseInt(value);
+            } else if (arg.startsWith("--detector=")) {
+                detectorName = value;
+            } else if (arg.startsWith("--log=")) {
+                logDirectory = value;
+            } else if (arg.startsWith("--dictionary=")) {
+                dictionaryFile = value;
+            } else if (arg.startsWith("--calibration=")) {
+                calibrationFile = value;
+            } else if (arg.equals("--no-gate")) {
+                gated = false;
+            } else if (arg.equals("--once")) {
+                once = true;
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+
+        // Open the camera in the background, since creating the grabber loads its
+        // own native libraries, while the pipeline warms up
+        final int cameraDevice = device;
+        final String cameraFile = file;
+        final long[] cameraMillis = new long[1];
+        CompletableFuture<Camera> cameraReady = CompletableFuture.supplyAsync(() -> {
+            long cameraStart = System.nanoTime();
+            FrameGrabber grabber = cameraFile != null
+                    ? new OpenCVFrameGrabber(cameraFile)
+                    : new OpenCVFrameGrabber(cameraDevice);
+            Camera camera = new Camera(grabber);
+            camera.start();
+            cameraMillis[0] = (System.nanoTime() - cameraStart) / 1_000_000;
+            return camera;
+        });
+        Natives.load();
+        CodewordDictionary dictionary = dictionaryFile != null ? CodewordDictionary.load(Paths.get(dictionaryFile))
+                : null;
+        LensCalibration calibration = calibrationFile != null ? LensCalibration.load(Paths.get(calibrationFile))
+                : null;
+        QRDecoder decoder = new QRDecoder(Detector.forName(detectorName), dictionary, calibration);
+        long warmupMillis = warmUp(decoder, warmupFrames);
+        Camera camera = cameraReady.join();
+        ScanLog log = logDirectory != null ? new ScanLog(Paths.get(logDirectory)) : null;
+        String source = cameraFile != null ? "file:" + cameraFile : "device:" + cameraDevice;
+
+        long readyMillis = (System.nanoTime() - mainStart) / 1_000_000;
+        long jvmMillis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+        System.err.printf("Ready in %d ms (%d ms since JVM start): natives %d ms, warm-up %d ms (%d frames), "
+                + "camera %d ms%n", readyMillis, jvmMillis, Natives.getLoadMillis(), warmupMillis, warmupFrames,
+                cameraMillis[0]);
+
+        // Read codes over several frames and print each new reading
+        QRFusion fusion = new QRFusion(dictionary);
+        FrameGate gate = gated ? new FrameGate() : null;
+        boolean reading = false;
+        String lastText = null;
+        boolean firstRead = true;
+        while (true) {
+            camera.getCurrentFrame(false, false, false);
+            BufferedImage frame = camera.getRawFrame();
+            if (frame == null) {
+                System.err.println("No more frames!");
+                break;
+            }
+
+            // Skip frames that cannot add anything, unless a code is still being read
+            Mat mat = QRDecoder.toMat(frame);
+            if (gate != null) {
+                if (reading) {
+                    gate.holdOpen();
+                }
+                if (!gate.evaluate(mat).shouldProcess()) {
+                    mat.release();
+                    continue;
+                }
+            }
+
+            DetectionResult detection = decoder.decode(mat);
+            mat.release();
+            DecodeResult result = fusion.update(detection.getCorners(), detection.getModuleDarkness());
+            reading = detection.getCorners() != null && result == null;
+
+            if (result != null && !result.getText().equals(lastText)) {
+                lastText = result.getText();
+                if (firstRead) {
+                    System.err.printf("First read %d ms after start%n", (System.nanoTime() - mainStart) / 1_000_000);
+                    firstRead = false;
+                }
+                System.out.println(lastText);
+                if (log != null) {
+                    log.append(source, result);
+                }
+                if (once) {
+                    break;
+                }
+            }
+        }
+
+        camera.release();
+        if (gate != null) {
+            System.err.println(gate);
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    /**
+     * Pushes the specified number of synthetic frames through detection and
+     * decoding so that the first real scan does not pay for JIT compilation and
+     * native initialization. Returns how long the warm-up took, in milliseconds.
+     */
+    public static long warmUp(QRDecoder decoder, int frames) {
+        long start = System.nanoTime();
+        for (int i = 0; i < frames; i++) {
+            QRBenchmark.Sample sample = QRBenchmark.generateSample("warmup", QRBenchmark.Distortion.NONE, 0,
+                    new Random(i));
+            decoder.decode(sample.frame());
+        }
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+}
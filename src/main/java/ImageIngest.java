@@ -0,0 +1,337 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.spi.IIORegistry;
+import javax.imageio.spi.ImageReaderSpi;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes QR codes in stored images, such as phone photos, without holding the
+ * full-resolution image in memory. The image is first read scaled down to about
+ * LOCATE_SIZE pixels on its longer side, and the code is located in that. Only
+ * the region around the code is then read again, at full resolution unless the
+ * code is very large, and decoded. Image readers are kept per thread and
+ * reused.
+ * <p>
+ * Usage: {@code ImageIngest [--detector=NAME] [--threads=N] [--full] [--cache=FILE] [--cache-size=N]
+ * FILE|DIR...}
+ * <p>
+ * Prints one line per image. --full reads every image completely instead, for
+ * comparison. With --cache, results are kept in the ResultCache in FILE, of at
+ * most N images, and images unchanged since an earlier run are not decoded
+ * again.
+ */
+public class ImageIngest {
+
+    public static final int LOCATE_SIZE = 1024;
+    // The region read at full resolution extends this fraction of the code's
+    // size beyond its outline, to allow for the subsampled corners being off
+    public static final double REGION_MARGIN = 0.25;
+    // Codes much larger than this in the image are read back subsampled as well,
+    // since sampling the modules gains nothing beyond it
+    public static final int REGION_CODE_SIZE = 2 * QRUtil.IMAGE_SIZE;
+
+    private static final ThreadLocal<Map<ImageReaderSpi, ImageReader>> READERS =
+            ThreadLocal.withInitial(HashMap::new);
+
+    private final QRDecoder decoder;
+
+    public ImageIngest(QRDecoder decoder) {
+        this.decoder = decoder;
+    }
+
+    public static void main(String[] args) throws InterruptedException, ExecutionException {
+        System.setProperty("java.awt.headless", "true");
+
+        String detectorName = "contour";
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean full = false;
+        String cacheFile = null;
+        int cacheSize = ResultCache.DEFAULT_MAX_ENTRIES;
+        List<File> files = new ArrayList<>();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--detector=")) {
+                detectorName = value;
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.equals("--full")) {
+                full = true;
+            } else if (arg.startsWith("--cache=")) {
+                cacheFile = value;
+            } else if (arg.startsWith("--cache-size=")) {
+                cacheSize = Integer.parseInt(value);
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            } else {
+                File file = new File(arg);
+                File[] children = file.listFiles(File::isFile);
+                if (children != null) {
+                    Arrays.sort(children);
+                    files.addAll(Arrays.asList(children));
+                } else {
+                    files.add(file);
+                }
+            }
+        }
+
+        ImageIngest ingest = new ImageIngest(new QRDecoder(Detector.forName(detectorName)));
+        // Results depend on the decoder, its detector and how the image is read
+        ResultCache cache = cacheFile != null ? new ResultCache(Paths.get(cacheFile),
+                QRDecoder.VERSION + "/" + detectorName + (full ? "/full" : ""), cacheSize) : null;
+        ResultCache.FileDecoder decode = full ? ingest::decodeFully : ingest::decode;
+        long start = System.nanoTime();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        int decoded = 0;
+        AtomicLong allocated = new AtomicLong();
+        try {
+            List<Future<DetectionResult>> futures = new ArrayList<>();
+            for (File file : files) {
+                futures.add(pool.submit(() -> {
+                    long before = allocatedBytes();
+                    try {
+                        return cache != null ? cache.get(file, decode) : decode.decode(file);
+                    } finally {
+                        allocated.addAndGet(allocatedBytes() - before);
+                    }
+                }));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    DetectionResult result = futures.get(i).get();
+                    System.out.println(files.get(i) + ": " + (result.isDecoded() ? result.getText()
+                            : result.getStatus().toString().toLowerCase().replace('_', ' ')));
+                    if (result.isDecoded()) {
+                        decoded++;
+                    }
+                } catch (ExecutionException e) {
+                    System.out.println(files.get(i) + ": error reading image (" + e.getCause().getMessage() + ")");
+                }
+            }
+        } finally {
+            pool.shutdown();
+            if (cache != null) {
+                cache.close();
+            }
+        }
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        int images = Math.max(1, files.size());
+        System.err.printf("%d of %d images decoded in %.2f s (%.1f ms/image, %.1f MB heap allocated/image)%n",
+                decoded, files.size(), seconds, seconds * 1000 / images, allocated.get() / 1e6 / images);
+        if (cache != null) {
+            System.err.printf("Result cache: %d unchanged, %d with cached contents, %d decoded, %d images cached%n",
+                    cache.getUnchangedHitCount(), cache.getContentHitCount(), cache.getMissCount(), cache.size());
+        }
+    }
+
+    /**
+     * Locates the code in a subsampled read of the specified image and decodes it
+     * from a full-resolution read of the region around it. The outline and
+     * corners of the result are in full-image coordinates.
+     */
+    public DetectionResult decode(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) {
+                throw new IOException("Cannot open " + file);
+            }
+            ImageReader reader = readerFor(input);
+            Mat gray = null;
+            Mat roi = null;
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+
+                // Locate pass on a subsampled copy, retried once at twice the
+                // resolution, since a small or blurry code can vanish in the copy
+                int subsampling = Math.max(1, (int) Math.ceil((double) Math.max(width, height) / LOCATE_SIZE));
+                long locateStart = System.nanoTime();
+                gray = readSubsampled(file, reader, subsampling);
+                Point[] outline = decoder.locate(gray);
+                if (outline.length != 4 && subsampling > 1) {
+                    gray.release();
+                    gray = readSubsampled(file, reader, subsampling / 2);
+                    outline = decoder.locate(gray);
+                }
+                double scale = (double) width / gray.cols();
+                if (outline.length != 4) {
+                    return new DetectionResult(DetectionResult.Status.NOT_FOUND, null, null, null, null,
+                            System.nanoTime() - locateStart, 0, 0);
+                }
+
+                // Decode pass on the region around the code, at full resolution or
+                // just enough for the code to be REGION_CODE_SIZE across
+                Rectangle region = region(outline, scale, width, height);
+                double codeSize = Math.max(region.width, region.height) / (1 + 2 * REGION_MARGIN);
+                int regionSubsampling = Math.max(1, (int) (codeSize / REGION_CODE_SIZE));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                param.setSourceSubsampling(regionSubsampling, regionSubsampling, 0, 0);
+                roi = QRDecoder.toMat(reader.read(0, param));
+                DetectionResult result = decoder.decode(roi).transformed(regionSubsampling, region.x, region.y);
+
+                // The full-resolution region normally decodes at least as well, but
+                // fall back on the subsampled copy rather than lose a code
+                if (!result.isDecoded()) {
+                    DetectionResult subsampled = decoder.decode(gray).transformed(scale, 0, 0);
+                    if (subsampled.isDecoded()) {
+                        result = subsampled;
+                    }
+                }
+                return result;
+            } finally {
+                reader.setInput(null);
+                // Also when a read fails, e.g. on a truncated file
+                if (gray != null) {
+                    gray.release();
+                }
+                if (roi != null) {
+                    roi.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the specified image completely and decodes it, as a baseline for
+     * decode.
+     */
+    public DetectionResult decodeFully(File file) throws IOException {
+        BufferedImage image = ImageIO.read(file);
+        if (image == null) {
+            throw new IOException("Cannot read " + file);
+        }
+        return decoder.decode(image);
+    }
+
+    /**
+     * Reads the specified image in grayscale, subsampled by about the specified
+     * factor. The reader must have the image as its input.
+     */
+    private static Mat readSubsampled(File file, ImageReader reader, int subsampling) throws IOException {
+        Mat gray = readReduced(file, reader.getFormatName(), subsampling);
+        if (gray == null) {
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            Mat image = QRDecoder.toMat(reader.read(0, param));
+            gray = QRDecoder.toGray(image);
+            if (gray != image) {
+                image.release();
+            }
+        }
+        return gray;
+    }
+
+    /**
+     * Reads the specified JPEG image in grayscale, reduced by the smallest power
+     * of two up to 8 that is at least the specified subsampling. Returns null
+     * for other formats or larger subsampling. libjpeg then scales the image
+     * while decoding it, which is several times faster than subsampling the
+     * decoded pixels, and the pixels never touch the Java heap.
+     */
+    private static Mat readReduced(File file, String format, int subsampling) {
+        if (!format.equalsIgnoreCase("jpeg") || subsampling > 8) {
+            return null;
+        }
+        int flag;
+        if (subsampling == 1) {
+            flag = Imgcodecs.IMREAD_GRAYSCALE;
+        } else if (subsampling == 2) {
+            flag = Imgcodecs.IMREAD_REDUCED_GRAYSCALE_2;
+        } else if (subsampling <= 4) {
+            flag = Imgcodecs.IMREAD_REDUCED_GRAYSCALE_4;
+        } else {
+            flag = Imgcodecs.IMREAD_REDUCED_GRAYSCALE_8;
+        }
+        // ImageIO, which reads the region again, ignores the EXIF orientation, so
+        // libjpeg must too for the outline to be in the same frame
+        Mat gray = Imgcodecs.imread(file.getPath(), flag | Imgcodecs.IMREAD_IGNORE_ORIENTATION);
+        if (gray.empty()) {
+            gray.release();
+            return null;
+        }
+        return gray;
+    }
+
+    /**
+     * Returns the bounding box of the specified outline, found in an image
+     * scaled down by the specified factor, in full-image coordinates and
+     * extended by REGION_MARGIN on every side.
+     */
+    private static Rectangle region(Point[] outline, double scale, int width, int height) {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Point p : outline) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+        double margin = Math.max(REGION_MARGIN * Math.max(maxX - minX, maxY - minY), 2);
+        int x0 = Math.max(0, (int) Math.floor((minX - margin) * scale));
+        int y0 = Math.max(0, (int) Math.floor((minY - margin) * scale));
+        int x1 = Math.min(width, (int) Math.ceil((maxX + margin + 1) * scale));
+        int y1 = Math.min(height, (int) Math.ceil((maxY + margin + 1) * scale));
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * Returns this thread's reader for the format of the specified stream,
+     * creating it the first time, in the same order of preference as
+     * ImageIO.getImageReaders.
+     */
+    private static ImageReader readerFor(ImageInputStream input) throws IOException {
+        Iterator<ImageReaderSpi> providers = IIORegistry.getDefaultInstance()
+                .getServiceProviders(ImageReaderSpi.class, true);
+        while (providers.hasNext()) {
+            ImageReaderSpi provider = providers.next();
+            input.mark();
+            boolean canDecode;
+            try {
+                canDecode = provider.canDecodeInput(input);
+            } finally {
+                input.reset();
+            }
+            if (canDecode) {
+                Map<ImageReaderSpi, ImageReader> readers = READERS.get();
+                ImageReader reader = readers.get(provider);
+                if (reader == null) {
+                    reader = provider.createReaderInstance();
+                    readers.put(provider, reader);
+                }
+                return reader;
+            }
+        }
+        throw new IOException("Unsupported image format");
+    }
+
+    /**
+     * Returns the number of heap bytes the current thread has allocated so far.
+     */
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getCurrentThreadAllocatedBytes();
+    }
+
+}
@@ -0,0 +1,280 @@
+import org.opencv.core.Point;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * The intrinsics and lens distortion of a camera, as found by OpenCV's camera
+ * calibration, along with fixed-point remap maps that undistort its frames.
+ * The maps are computed once, for a canvas large enough to hold the whole
+ * undistorted frame at the scale of its center, and are applied to regions of
+ * a frame rather than to the whole of it, so that only the pixels around a
+ * code are ever undistorted.
+ * <p>
+ * A calibration applies to frames of the size it was made at. It holds no
+ * mutable state, so it can be used from any number of threads at once.
+ * <p>
+ * Calibrations are loaded from properties files such as:
+ * <pre>
+ * width=1920
+ * height=1080
+ * fx=1402.5
+ * fy=1401.8
+ * cx=961.2
+ * cy=538.7
+ * # k1 k2 p1 p2 [k3], in OpenCV's order
+ * distortion=-0.31 0.12 0.0004 -0.0002 -0.02
+ * </pre>
+ */
+public class LensCalibration {
+
+    // Points sampled along each side of a frame or region to find the bounds of
+    // its undistorted shape, whose sides are curves
+    private static final int EDGE_SAMPLES = 16;
+    // The canvas is limited to this many times the frame size, since the far
+    // corners of a strong wide-angle lens undistort to very far out
+    private static final double MAX_CANVAS_SCALE = 2;
+
+    private final int width;
+    private final int height;
+    private final double fx, fy, cx, cy;
+    private final double k1, k2, p1, p2, k3;
+    private final double canvasCx, canvasCy;
+    private final Mat cameraMatrix;
+    private final Mat distortion;
+    private final Mat canvasMatrix;
+    private final Rect canvas;
+    private final Mat map1;
+    private final Mat map2;
+
+    /**
+     * Creates a calibration for frames of the specified size, with the specified
+     * focal lengths and principal point in pixels and distortion coefficients
+     * k1, k2, p1, p2 and optionally k3.
+     */
+    public LensCalibration(int width, int height, double fx, double fy, double cx, double cy, double[] coefficients) {
+        if (coefficients.length != 4 && coefficients.length != 5) {
+            throw new IllegalArgumentException("Expected 4 or 5 distortion coefficients, got " + coefficients.length);
+        }
+        Natives.load();
+
+        this.width = width;
+        this.height = height;
+        this.fx = fx;
+        this.fy = fy;
+        this.cx = cx;
+        this.cy = cy;
+        k1 = coefficients[0];
+        k2 = coefficients[1];
+        p1 = coefficients[2];
+        p2 = coefficients[3];
+        k3 = coefficients.length == 5 ? coefficients[4] : 0;
+        cameraMatrix = matrix(fx, fy, cx, cy);
+        distortion = new MatOfDouble(k1, k2, p1, p2, k3);
+
+        // Size the canvas to the undistorted frame, keeping the focal lengths so
+        // that a code near the center keeps its size in pixels
+        Rect bounds = bounds(undistort(edgePoints(new Rect(0, 0, width, height)), cameraMatrix));
+        int x0 = (int) Math.max(bounds.x, -(MAX_CANVAS_SCALE - 1) / 2 * width);
+        int y0 = (int) Math.max(bounds.y, -(MAX_CANVAS_SCALE - 1) / 2 * height);
+        int x1 = (int) Math.min(bounds.x + bounds.width, (MAX_CANVAS_SCALE + 1) / 2 * width);
+        int y1 = (int) Math.min(bounds.y + bounds.height, (MAX_CANVAS_SCALE + 1) / 2 * height);
+        canvas = new Rect(0, 0, x1 - x0, y1 - y0);
+        canvasCx = cx - x0;
+        canvasCy = cy - y0;
+        canvasMatrix = matrix(fx, fy, canvasCx, canvasCy);
+
+        // Fixed-point maps: remap looks up the source position of each canvas
+        // pixel in integers instead of interpolating floats
+        map1 = new Mat();
+        map2 = new Mat();
+        Imgproc.initUndistortRectifyMap(cameraMatrix, distortion, new Mat(), canvasMatrix, canvas.size(),
+                CvType.CV_16SC2, map1, map2);
+    }
+
+    /**
+     * Loads a calibration from the specified properties file.
+     */
+    public static LensCalibration load(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        try {
+            String[] values = property(properties, "distortion").trim().split("[\\s,]+");
+            double[] coefficients = new double[values.length];
+            for (int i = 0; i < values.length; i++) {
+                coefficients[i] = Double.parseDouble(values[i]);
+            }
+            return new LensCalibration(
+                    Integer.parseInt(property(properties, "width")),
+                    Integer.parseInt(property(properties, "height")),
+                    Double.parseDouble(property(properties, "fx")),
+                    Double.parseDouble(property(properties, "fy")),
+                    Double.parseDouble(property(properties, "cx")),
+                    Double.parseDouble(property(properties, "cy")),
+                    coefficients);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Bad calibration in " + path + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static String property(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + key);
+        }
+        return value.trim();
+    }
+
+    /**
+     * Returns whether the specified frame has the size this calibration was made
+     * at.
+     */
+    public boolean appliesTo(Mat frame) {
+        return frame.cols() == width && frame.rows() == height;
+    }
+
+    /**
+     * Returns the region of the canvas that the specified region of a frame
+     * undistorts into, extended by the specified fraction of its size on every
+     * side and clipped to the canvas.
+     */
+    public Rect undistortedRegion(Rect region, double margin) {
+        Rect bounds = bounds(undistort(edgePoints(region), canvasMatrix));
+        int extend = (int) Math.ceil(Math.max(margin * Math.max(bounds.width, bounds.height), 2));
+        int x0 = Math.max(0, bounds.x - extend);
+        int y0 = Math.max(0, bounds.y - extend);
+        int x1 = Math.min(canvas.width, bounds.x + bounds.width + extend);
+        int y1 = Math.min(canvas.height, bounds.y + bounds.height + extend);
+        return new Rect(x0, y0, Math.max(0, x1 - x0), Math.max(0, y1 - y0));
+    }
+
+    /**
+     * Returns the specified region of the canvas, undistorted from the specified
+     * frame, which may be grayscale or BGR. Only the region's pixels are
+     * computed.
+     */
+    public Mat undistortRegion(Mat frame, Rect region) {
+        if (!appliesTo(frame)) {
+            throw new IllegalArgumentException("Calibrated for " + width + "x" + height + " frames, got "
+                    + frame.cols() + "x" + frame.rows());
+        }
+        // The maps hold absolute positions in the frame, so a submat of them
+        // undistorts just that region
+        Mat xy = map1.submat(region);
+        Mat fraction = map2.submat(region);
+        Mat undistorted = new Mat();
+        Imgproc.remap(frame, undistorted, xy, fraction, Imgproc.INTER_LINEAR, Core.BORDER_CONSTANT, new Scalar(0));
+        xy.release();
+        fraction.release();
+        return undistorted;
+    }
+
+    /**
+     * Returns the whole undistorted canvas of the specified frame, e.g. for
+     * display.
+     */
+    public Mat undistort(Mat frame) {
+        return undistortRegion(frame, canvas);
+    }
+
+    /**
+     * Returns where the specified point on the canvas lies in the distorted
+     * frame.
+     */
+    public Point distort(Point point) {
+        double x = (point.x - canvasCx) / fx;
+        double y = (point.y - canvasCy) / fy;
+        double r2 = x * x + y * y;
+        double radial = 1 + r2 * (k1 + r2 * (k2 + r2 * k3));
+        double xd = x * radial + 2 * p1 * x * y + p2 * (r2 + 2 * x * x);
+        double yd = y * radial + p1 * (r2 + 2 * y * y) + 2 * p2 * x * y;
+        return new Point(fx * xd + cx, fy * yd + cy);
+    }
+
+    /**
+     * Returns where the specified points of the distorted frame lie on the
+     * canvas.
+     */
+    public Point[] undistort(Point[] points) {
+        return undistort(points, canvasMatrix);
+    }
+
+    private Point[] undistort(Point[] points, Mat target) {
+        MatOfPoint2f undistorted = new MatOfPoint2f();
+        Imgproc.undistortPointsIter(new MatOfPoint2f(points), undistorted, cameraMatrix, distortion, new Mat(),
+                target, new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 20, 0.01));
+        return undistorted.toArray();
+    }
+
+    /**
+     * Returns points spread along the sides of the specified rectangle.
+     */
+    private static Point[] edgePoints(Rect rect) {
+        Point[] points = new Point[EDGE_SAMPLES * 4];
+        double right = rect.x + rect.width - 1;
+        double bottom = rect.y + rect.height - 1;
+        for (int i = 0; i < EDGE_SAMPLES; i++) {
+            double t = (double) i / EDGE_SAMPLES;
+            double x = rect.x + t * (rect.width - 1);
+            double y = rect.y + t * (rect.height - 1);
+            points[i * 4] = new Point(x, rect.y);
+            points[i * 4 + 1] = new Point(right - (x - rect.x), bottom);
+            points[i * 4 + 2] = new Point(rect.x, bottom - (y - rect.y));
+            points[i * 4 + 3] = new Point(right, y);
+        }
+        return points;
+    }
+
+    private static Rect bounds(Point[] points) {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (Point p : points) {
+            minX = Math.min(minX, p.x);
+            minY = Math.min(minY, p.y);
+            maxX = Math.max(maxX, p.x);
+            maxY = Math.max(maxY, p.y);
+        }
+        int x0 = (int) Math.floor(minX);
+        int y0 = (int) Math.floor(minY);
+        return new Rect(x0, y0, (int) Math.ceil(maxX) + 1 - x0, (int) Math.ceil(maxY) + 1 - y0);
+    }
+
+    private static Mat matrix(double fx, double fy, double cx, double cy) {
+        Mat matrix = Mat.eye(3, 3, CvType.CV_64F);
+        matrix.put(0, 0, fx);
+        matrix.put(1, 1, fy);
+        matrix.put(0, 2, cx);
+        matrix.put(1, 2, cy);
+        return matrix;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the size of the undistorted canvas, which regions passed to
+     * undistortRegion must lie within.
+     */
+    public Size getCanvasSize() {
+        return canvas.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("LensCalibration{%dx%d, f=(%.1f, %.1f), c=(%.1f, %.1f), k=(%.4f, %.4f, %.4f), "
+                + "p=(%.4f, %.4f)}", width, height, fx, fy, cx, cy, k1, k2, k3, p1, p2);
+    }
+
+}
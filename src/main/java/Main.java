@@ -1,9 +1,29 @@
 import javax.swing.*;
 import java.awt.*;
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
 
 public class Main {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws InterruptedException, IOException, ExecutionException {
+        // Scan from the camera without a UI, e.g. on kiosks
+        if (args.length > 0 && args[0].equals("--headless")) {
+            HeadlessScanner.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        // Scan several cameras or files at once, e.g. on a packing line
+        if (args.length > 0 && args[0].equals("--multi")) {
+            MultiSourceScanner.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        // Decode stored images, e.g. a folder of photos
+        if (args.length > 0 && args[0].equals("--batch")) {
+            ImageIngest.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception e) {
@@ -0,0 +1,361 @@
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Scans several frame sources at once, e.g. every camera on a host. Each source
+ * has its own grab thread, and all of them feed one shared pool of decode
+ * workers. A source has at most one frame waiting or being decoded at any
+ * time: newer frames replace a waiting one, and a source whose frame has been
+ * decoded goes to the back of the pool's queue before its next one. Every
+ * source therefore gets its turn however fast the others deliver frames, and
+ * throughput grows with the number of workers rather than of JVMs. Each grab
+ * thread runs its frames through a FrameGate first, so that unchanged and
+ * blurry frames never reach the workers.
+ * <p>
+ * Usage: {@code MultiSourceScanner --source=SPEC [--source=SPEC...] [--workers=N] [--detector=NAME]
+ * [--seconds=N] [--log=DIR] [--dictionary=FILE] [--calibration=FILE] [--no-gate]}
+ * <p>
+ * Each SPEC is as accepted by FrameSource.open. With --log, every reading is
+ * also appended to the ScanLog in DIR. With --dictionary, only the codes listed
+ * in FILE are read (see CodewordDictionary). With --calibration, frames are
+ * undistorted around the code with the LensCalibration in FILE.
+ */
+public class MultiSourceScanner implements AutoCloseable {
+
+    /**
+     * A new reading from one of the sources.
+     */
+    public record Reading(String source, DecodeResult result, long timeMillis) {
+    }
+
+    /**
+     * A snapshot of one source's counters. Skipped frames were turned away by the
+     * frame gate, and dropped frames were replaced by a newer frame before a
+     * worker got to them.
+     */
+    public record SourceMetrics(String source, long grabbed, long skipped, long decoded, long dropped, long readings,
+                                double meanDecodeMillis) {
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d grabbed, %d skipped, %d decoded, %d dropped, %d readings, %.2f ms/decode",
+                    source, grabbed, skipped, decoded, dropped, readings, meanDecodeMillis);
+        }
+
+    }
+
+    /**
+     * A source along with its grab thread, waiting frame and per-source state.
+     * Only the grab thread touches the gate, and only one worker at a time the
+     * fusion and last reading.
+     */
+    private class Channel {
+
+        final FrameSource source;
+        final FrameGate gate;
+        final QRFusion fusion = new QRFusion(decoder.getDictionary());
+        final AtomicReference<Mat> waiting = new AtomicReference<>();
+        final AtomicBoolean scheduled = new AtomicBoolean(false);
+        final AtomicLong grabbed = new AtomicLong();
+        final AtomicLong skipped = new AtomicLong();
+        final AtomicLong decoded = new AtomicLong();
+        final AtomicLong dropped = new AtomicLong();
+        final AtomicLong readings = new AtomicLong();
+        final AtomicLong decodeNanos = new AtomicLong();
+        Thread grabThread;
+        String lastText;
+        volatile boolean reading = false;
+
+        Channel(FrameSource source, FrameGate gate) {
+            this.source = source;
+            this.gate = gate;
+        }
+
+    }
+
+    private final List<Channel> channels = new ArrayList<>();
+    private final ExecutorService workers;
+    private final QRDecoder decoder;
+    private final Consumer<Reading> listener;
+    private volatile boolean running = false;
+
+    /**
+     * Creates a scanner for the specified sources that decodes on the given
+     * number of worker threads and passes each new reading to the listener. The
+     * listener is called from the worker threads.
+     */
+    public MultiSourceScanner(List<FrameSource> sources, int workers, QRDecoder decoder, Consumer<Reading> listener) {
+        this(sources, workers, decoder, listener, true);
+    }
+
+    /**
+     * Creates a scanner as above, optionally without frame gates, so that every
+     * frame is decoded.
+     */
+    public MultiSourceScanner(List<FrameSource> sources, int workers, QRDecoder decoder, Consumer<Reading> listener,
+                              boolean gated) {
+        this.decoder = decoder;
+        for (FrameSource source : sources) {
+            channels.add(new Channel(source, gated ? new FrameGate() : null));
+        }
+        this.workers = Executors.newFixedThreadPool(workers);
+        this.listener = listener;
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        System.setProperty("java.awt.headless", "true");
+
+        List<String> specs = new ArrayList<>();
+        int workers = Runtime.getRuntime().availableProcessors();
+        String detectorName = "contour";
+        int seconds = 0;
+        String logDirectory = null;
+        String dictionaryFile = null;
+        String calibrationFile = null;
+        boolean gated = true;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--source=")) {
+                specs.add(value);
+            } else if (arg.startsWith("--workers=")) {
+                workers = Integer.parseInt(value);
+            } else if (arg.startsWith("--detector=")) {
+                detectorName = value;
+            } else if (arg.startsWith("--seconds=")) {
+                seconds = Integer.parseInt(value);
+            } else if (arg.startsWith("--log=")) {
+                logDirectory = value;
+            } else if (arg.startsWith("--dictionary=")) {
+                dictionaryFile = value;
+            } else if (arg.startsWith("--calibration=")) {
+                calibrationFile = value;
+            } else if (arg.equals("--no-gate")) {
+                gated = false;
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+        if (specs.isEmpty()) {
+            throw new IllegalArgumentException("At least one --source is required");
+        }
+
+        Natives.load();
+        List<FrameSource> sources = new ArrayList<>();
+        for (String spec : specs) {
+            sources.add(FrameSource.open(spec));
+        }
+
+        CodewordDictionary dictionary = dictionaryFile != null ? CodewordDictionary.load(Paths.get(dictionaryFile))
+                : null;
+        LensCalibration calibration = calibrationFile != null ? LensCalibration.load(Paths.get(calibrationFile))
+                : null;
+        QRDecoder decoder = new QRDecoder(Detector.forName(detectorName), dictionary, calibration);
+        ScanLog log = logDirectory != null ? new ScanLog(Paths.get(logDirectory)) : null;
+        long start = System.nanoTime();
+        try (MultiSourceScanner scanner = new MultiSourceScanner(sources, workers, decoder, reading -> {
+            System.out.println("[" + reading.source() + "] " + reading.result().getText());
+            if (log != null) {
+                log.append(reading.source(), reading.result());
+            }
+        }, gated)) {
+            scanner.start();
+            if (seconds > 0) {
+                scanner.awaitSources(seconds, TimeUnit.SECONDS);
+            } else {
+                scanner.awaitSources(Long.MAX_VALUE, TimeUnit.SECONDS);
+            }
+
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            long decoded = 0;
+            for (SourceMetrics metrics : scanner.getMetrics()) {
+                System.err.println(metrics);
+                decoded += metrics.decoded();
+            }
+            System.err.printf("%d frames decoded in %.1f s (%.1f fps) on %d workers%n", decoded, elapsed,
+                    decoded / elapsed, workers);
+        } finally {
+            if (log != null) {
+                log.close();
+                System.err.println(log);
+            }
+        }
+    }
+
+    /**
+     * Starts a grab thread for every source.
+     */
+    public void start() {
+        running = true;
+        for (Channel channel : channels) {
+            channel.grabThread = new Thread(() -> grabLoop(channel), "grab-" + channel.source.getName());
+            channel.grabThread.start();
+        }
+    }
+
+    private void grabLoop(Channel channel) {
+        while (running) {
+            Mat frame = channel.source.grab();
+            if (frame == null) {
+                break;
+            }
+            channel.grabbed.incrementAndGet();
+
+            // Skip frames that cannot add anything, unless a code is still being read
+            if (channel.gate != null) {
+                if (channel.reading) {
+                    channel.gate.holdOpen();
+                }
+                if (!channel.gate.evaluate(frame).shouldProcess()) {
+                    frame.release();
+                    channel.skipped.incrementAndGet();
+                    continue;
+                }
+            }
+
+            // Replace the waiting frame, if any, and queue the source unless it
+            // is already queued or being decoded
+            Mat replaced = channel.waiting.getAndSet(frame);
+            if (replaced != null) {
+                replaced.release();
+                channel.dropped.incrementAndGet();
+            }
+            schedule(channel);
+        }
+    }
+
+    private void schedule(Channel channel) {
+        if (channel.scheduled.compareAndSet(false, true)) {
+            try {
+                workers.execute(() -> decode(channel));
+            } catch (RejectedExecutionException e) {
+                // Closing; the waiting frame is released by close
+                channel.scheduled.set(false);
+            }
+        }
+    }
+
+    private void decode(Channel channel) {
+        Mat frame = channel.waiting.getAndSet(null);
+        if (frame != null) {
+            long start = System.nanoTime();
+            DetectionResult detection = decoder.decode(frame);
+            frame.release();
+            DecodeResult result = channel.fusion.update(detection.getCorners(), detection.getModuleDarkness());
+            channel.decodeNanos.addAndGet(System.nanoTime() - start);
+            channel.decoded.incrementAndGet();
+            channel.reading = detection.getCorners() != null && result == null;
+
+            if (result != null && !result.getText().equals(channel.lastText)) {
+                channel.lastText = result.getText();
+                channel.readings.incrementAndGet();
+                listener.accept(new Reading(channel.source.getName(), result, System.currentTimeMillis()));
+            }
+        }
+
+        // Go to the back of the queue if a newer frame came in meanwhile
+        channel.scheduled.set(false);
+        if (channel.waiting.get() != null) {
+            schedule(channel);
+        } else {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until every source has run out of frames and their last frames have
+     * been decoded, or until the timeout expires. Returns whether all sources
+     * finished.
+     */
+    public boolean awaitSources(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + Math.min(unit.toNanos(timeout), Long.MAX_VALUE / 2);
+        for (Channel channel : channels) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            channel.grabThread.join(Math.max(1, remaining / 1_000_000));
+            if (channel.grabThread.isAlive()) {
+                return false;
+            }
+        }
+
+        synchronized (this) {
+            while (!idle()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                wait(Math.max(1, remaining / 1_000_000));
+            }
+        }
+        return true;
+    }
+
+    private boolean idle() {
+        for (Channel channel : channels) {
+            if (channel.scheduled.get() || channel.waiting.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a snapshot of every source's counters, in the order the sources
+     * were given.
+     */
+    public List<SourceMetrics> getMetrics() {
+        List<SourceMetrics> metrics = new ArrayList<>();
+        for (Channel channel : channels) {
+            long decoded = channel.decoded.get();
+            metrics.add(new SourceMetrics(channel.source.getName(), channel.grabbed.get(), channel.skipped.get(), decoded,
+                    channel.dropped.get(), channel.readings.get(),
+                    decoded > 0 ? channel.decodeNanos.get() / 1e6 / decoded : 0));
+        }
+        return metrics;
+    }
+
+    /**
+     * Stops the grab threads and workers and closes every source. If the calling
+     * thread is interrupted while waiting for them to stop, the sources are left
+     * open and the thread's interrupt status is set again.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            for (Channel channel : channels) {
+                if (channel.grabThread != null) {
+                    channel.grabThread.join();
+                }
+            }
+            workers.shutdown();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        for (Channel channel : channels) {
+            Mat frame = channel.waiting.getAndSet(null);
+            if (frame != null) {
+                frame.release();
+            }
+            channel.source.close();
+        }
+    }
+
+}
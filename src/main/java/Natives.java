@@ -0,0 +1,44 @@
+import nu.pattern.OpenCV;
+
+/**
+ * Loads the OpenCV native library the first time it is needed, exactly once per
+ * JVM. Only the binary for the host platform is extracted and loaded.
+ */
+public class Natives {
+
+    private Natives() {
+    }
+
+    /**
+     * Loads the native library if it has not been loaded yet. Safe to call from
+     * any thread; callers block until the library is loaded.
+     */
+    public static void load() {
+        Holder.ensureLoaded();
+    }
+
+    /**
+     * Returns how long loading the native library took, in milliseconds.
+     */
+    public static long getLoadMillis() {
+        return Holder.LOAD_MILLIS;
+    }
+
+    // The JVM initializes this class once, on first use, under its class
+    // initialization lock
+    private static class Holder {
+
+        private static final long LOAD_MILLIS;
+
+        static {
+            long start = System.nanoTime();
+            OpenCV.loadLocally();
+            LOAD_MILLIS = (System.nanoTime() - start) / 1_000_000;
+        }
+
+        private static void ensureLoaded() {
+        }
+
+    }
+
+}
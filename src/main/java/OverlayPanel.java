@@ -0,0 +1,139 @@
+import org.opencv.core.Point;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.WindowStateListener;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Displays camera frames with the QR code outline, the last decoded text and
+ * frame statistics drawn as a Java2D overlay, leaving the frames themselves
+ * untouched. Frames may be published from any thread; only the newest frame is
+ * painted once Swing gets to it, and nothing is scheduled for painting while
+ * the window is hidden or minimized.
+ */
+public class OverlayPanel extends JPanel {
+
+    /**
+     * An immutable snapshot of everything needed to paint one frame. The outline
+     * is in the unmirrored frame's coordinates and may be null or empty.
+     */
+    public record Snapshot(BufferedImage image, Point[] outline, boolean mirrored, String text, String stats) {
+    }
+
+    private final AtomicReference<Snapshot> latest = new AtomicReference<>();
+    private final AtomicBoolean repaintPending = new AtomicBoolean(false);
+    // Whether the panel is on screen, kept up to date on the EDT by the
+    // listeners below so that other threads never query Swing state
+    private volatile boolean renderable = false;
+    private final WindowStateListener windowStateListener = e -> updateRenderable();
+    private Window window;
+
+    public OverlayPanel(int width, int height) {
+        setPreferredSize(new Dimension(width, height));
+        setBackground(Color.BLACK);
+        addHierarchyListener(e -> {
+            if ((e.getChangeFlags() & (HierarchyEvent.SHOWING_CHANGED | HierarchyEvent.PARENT_CHANGED)) != 0) {
+                watchWindow();
+                updateRenderable();
+            }
+        });
+    }
+
+    /**
+     * Follows the state of the window the panel is in, which changes when the
+     * panel is added to or removed from a window.
+     */
+    private void watchWindow() {
+        Window ancestor = SwingUtilities.getWindowAncestor(this);
+        if (ancestor == window) {
+            return;
+        }
+        if (window != null) {
+            window.removeWindowStateListener(windowStateListener);
+        }
+        window = ancestor;
+        if (window != null) {
+            window.addWindowStateListener(windowStateListener);
+        }
+    }
+
+    private void updateRenderable() {
+        boolean minimized = window instanceof Frame frame && (frame.getExtendedState() & Frame.ICONIFIED) != 0;
+        renderable = isShowing() && !minimized;
+    }
+
+    /**
+     * Makes the specified snapshot the next one to be painted, replacing any
+     * snapshot that has not been painted yet.
+     */
+    public void publish(Snapshot snapshot) {
+        latest.set(snapshot);
+        if (isRenderable() && repaintPending.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(() -> {
+                repaintPending.set(false);
+                repaint();
+            });
+        }
+    }
+
+    /**
+     * Returns whether the panel is on screen, i.e. its window is showing and not
+     * minimized. Can be called from any thread.
+     */
+    public boolean isRenderable() {
+        return renderable;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Snapshot snapshot = latest.get();
+        if (snapshot == null || snapshot.image() == null) {
+            return;
+        }
+
+        Graphics2D g2d = (Graphics2D) g.create();
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        BufferedImage image = snapshot.image();
+        g2d.drawImage(image, 0, 0, null);
+
+        // QR code outline, flipped to match the frame if it was mirrored
+        if (snapshot.outline() != null && snapshot.outline().length > 0) {
+            Graphics2D outlineG2d = (Graphics2D) g2d.create();
+            if (snapshot.mirrored()) {
+                AffineTransform at = AffineTransform.getScaleInstance(-1, 1);
+                at.concatenate(AffineTransform.getTranslateInstance(-image.getWidth(), 0));
+                outlineG2d.transform(at);
+            }
+            outlineG2d.setColor(Color.GREEN);
+            outlineG2d.setStroke(new BasicStroke(3));
+            outlineG2d.draw(Camera.toPolygon(snapshot.outline()));
+            outlineG2d.dispose();
+        }
+
+        // Decoded text and statistics
+        g2d.setFont(new Font("Consolas", Font.PLAIN, 14));
+        int lineHeight = g2d.getFontMetrics().getHeight();
+        if (snapshot.text() != null) {
+            drawLabel(g2d, snapshot.text(), 8, lineHeight);
+        }
+        if (snapshot.stats() != null) {
+            drawLabel(g2d, snapshot.stats(), 8, image.getHeight() - 8);
+        }
+        g2d.dispose();
+    }
+
+    private void drawLabel(Graphics2D g2d, String text, int x, int y) {
+        FontMetrics metrics = g2d.getFontMetrics();
+        g2d.setColor(new Color(0, 0, 0, 160));
+        g2d.fillRect(x - 4, y - metrics.getAscent() - 2, metrics.stringWidth(text) + 8, metrics.getHeight() + 2);
+        g2d.setColor(Color.WHITE);
+        g2d.drawString(text, x, y);
+    }
+
+}
@@ -0,0 +1,553 @@
+import org.opencv.core.Point;
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates a synthetic corpus of QR codes composited into cluttered
+ * backgrounds with seeded random distortions, then runs the detection and
+ * decoding path over it and reports the success rate and latency percentiles
+ * for each distortion bucket. The same seed always produces the same corpus.
+ * <p>
+ * Usage: {@code QRBenchmark [--seed=N] [--samples=N] [--threads=N] [--warmup=N] [--out=DIR]
+ * [--decoder=hard|soft] [--detector=NAME[,NAME...]] [--upscale=N] [--dictionary=N] [--lens=K1]}
+ * <p>
+ * Each detector named with --detector (see Detector.NAMES) is run over the same
+ * corpus with the soft decoder and reported separately, so the backends can be
+ * compared. --upscale scales every generated frame up by the given factor, e.g.
+ * 6 for 3840x2880 frames, to measure detection on high-resolution cameras.
+ * --dictionary decodes with the soft decoder against a CodewordDictionary of
+ * the corpus's texts and N other random codes, as a deployment with a known
+ * inventory would. --lens bends every frame as a wide-angle lens with the
+ * radial distortion coefficient K1 would, e.g. -0.3 for strong barrel
+ * distortion, and decodes the corpus both as it is and with the lens's
+ * LensCalibration.
+ */
+public class QRBenchmark {
+
+    public static final int FRAME_WIDTH = 640;
+    public static final int FRAME_HEIGHT = 480;
+    // Focal length of the simulated lens, as a fraction of the frame width. A
+    // shorter one puts the corners of the frame beyond where strong barrel
+    // distortion folds back on itself.
+    public static final double LENS_FOCAL_LENGTH = 1.0;
+
+    /**
+     * The kinds of distortion applied to the generated samples. COMBINED applies
+     * every distortion at half strength.
+     */
+    public enum Distortion {
+        NONE, PERSPECTIVE, ROTATION, SCALE, BLUR, NOISE, GLARE, JPEG, COMBINED
+    }
+
+    /**
+     * A generated frame along with the text encoded in it and the bucket it
+     * belongs to.
+     */
+    public record Sample(String bucket, String text, BufferedImage frame) {
+    }
+
+    /**
+     * The outcome of scanning a single sample.
+     */
+    public record Result(String bucket, boolean success, long nanos) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seed = 42;
+        int samplesPerBucket = 20;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int warmup = 10;
+        File outDir = null;
+        boolean soft = false;
+        String[] detectors = null;
+        double upscale = 1;
+        int dictionarySize = -1;
+        double lens = 0;
+
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(value);
+            } else if (arg.startsWith("--samples=")) {
+                samplesPerBucket = Integer.parseInt(value);
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.startsWith("--warmup=")) {
+                warmup = Integer.parseInt(value);
+            } else if (arg.startsWith("--out=")) {
+                outDir = new File(value);
+            } else if (arg.startsWith("--decoder=")) {
+                soft = value.equals("soft");
+            } else if (arg.startsWith("--detector=")) {
+                detectors = value.split(",");
+            } else if (arg.startsWith("--upscale=")) {
+                upscale = Double.parseDouble(value);
+            } else if (arg.startsWith("--dictionary=")) {
+                dictionarySize = Integer.parseInt(value);
+            } else if (arg.startsWith("--lens=")) {
+                lens = Double.parseDouble(value);
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+
+        Natives.load();
+
+        long start = System.nanoTime();
+        List<Sample> corpus = generateCorpus(seed, samplesPerBucket, threads);
+        System.out.printf("Generated %d samples (seed %d) in %d ms using %d threads%n",
+                corpus.size(), seed, (System.nanoTime() - start) / 1_000_000, threads);
+
+        if (upscale != 1) {
+            corpus = upscale(corpus, upscale);
+        }
+
+        LensCalibration calibration = null;
+        if (lens != 0) {
+            BufferedImage first = corpus.get(0).frame();
+            calibration = lensFor(first.getWidth(), first.getHeight(), lens);
+            corpus = distort(corpus, calibration);
+        }
+
+        if (outDir != null) {
+            saveCorpus(corpus, outDir);
+        }
+
+        CodewordDictionary dictionary = null;
+        if (dictionarySize >= 0) {
+            dictionary = dictionaryFor(corpus, dictionarySize, seed);
+        }
+        if (detectors == null && (dictionary != null || calibration != null)) {
+            detectors = new String[] { "contour" };
+        }
+
+        if (detectors == null) {
+            printReport(run(corpus, warmup, soft));
+            return;
+        }
+        for (String name : detectors) {
+            System.out.println();
+            System.out.println("Detector: " + name);
+            printReport(run(corpus, warmup, new QRDecoder(Detector.forName(name), dictionary)));
+            if (calibration != null) {
+                System.out.println();
+                System.out.println("Detector: " + name + ", undistorted with " + calibration);
+                printReport(run(corpus, warmup, new QRDecoder(Detector.forName(name), dictionary, calibration)));
+            }
+        }
+    }
+
+    /**
+     * Generates the corpus in parallel. Each sample is seeded from the corpus seed
+     * and its own index, so the output does not depend on the number of threads.
+     */
+    public static List<Sample> generateCorpus(long seed, int samplesPerBucket, int threads)
+            throws InterruptedException, ExecutionException {
+        List<String> buckets = new ArrayList<>();
+        List<Distortion> distortions = new ArrayList<>();
+        List<Integer> levels = new ArrayList<>();
+        for (Distortion distortion : Distortion.values()) {
+            int maxLevel = distortion == Distortion.NONE ? 0 : 3;
+            for (int level = Math.min(1, maxLevel); level <= maxLevel; level++) {
+                buckets.add(distortion + (level > 0 ? "-" + level : ""));
+                distortions.add(distortion);
+                levels.add(level);
+            }
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Sample>> futures = new ArrayList<>();
+            for (int b = 0; b < buckets.size(); b++) {
+                for (int i = 0; i < samplesPerBucket; i++) {
+                    final String bucket = buckets.get(b);
+                    final Distortion distortion = distortions.get(b);
+                    final int level = levels.get(b);
+                    final long sampleSeed = mix(seed, (long) b * samplesPerBucket + i);
+                    futures.add(pool.submit(() -> generateSample(bucket, distortion, level, new Random(sampleSeed))));
+                }
+            }
+
+            List<Sample> corpus = new ArrayList<>(futures.size());
+            for (Future<Sample> future : futures) {
+                corpus.add(future.get());
+            }
+            return corpus;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Generates a single sample with the specified distortion applied at the
+     * specified level (1 to 3).
+     */
+    public static Sample generateSample(String bucket, Distortion distortion, int level, Random rng) {
+        String text = randomText(rng);
+        BufferedImage code = QRUtil.booleanGridToQR(QRUtil.encode(text));
+
+        double perspective = 0, rotation = 0, scale = 0, blur = 0, noise = 0, glare = 0, jpeg = 0;
+        switch (distortion) {
+            case PERSPECTIVE -> perspective = level;
+            case ROTATION -> rotation = level;
+            case SCALE -> scale = level;
+            case BLUR -> blur = level;
+            case NOISE -> noise = level;
+            case GLARE -> glare = level;
+            case JPEG -> jpeg = level;
+            case COMBINED -> perspective = rotation = scale = blur = noise = glare = jpeg = level * 0.5;
+            default -> {
+            }
+        }
+
+        BufferedImage background = randomBackground(rng);
+
+        // Pick the placement of the code: size, rotation and per-corner perspective jitter
+        double maxSize = 260 - 50 * scale;
+        double size = maxSize - 50 * rng.nextDouble();
+        double angle = Math.toRadians((rng.nextDouble() * 2 - 1) * 15 * rotation);
+        double jitter = 0.04 * perspective * size;
+        double half = size / 2;
+        double reach = half * Math.sqrt(2) + jitter;
+        double cx = reach + rng.nextDouble() * Math.max(0, FRAME_WIDTH - 2 * reach);
+        double cy = reach + rng.nextDouble() * Math.max(0, FRAME_HEIGHT - 2 * reach);
+
+        double[][] offsets = { { -half, -half }, { half, -half }, { -half, half }, { half, half } };
+        Point[] corners = new Point[4];
+        for (int i = 0; i < 4; i++) {
+            double dx = offsets[i][0] + (rng.nextDouble() * 2 - 1) * jitter;
+            double dy = offsets[i][1] + (rng.nextDouble() * 2 - 1) * jitter;
+            corners[i] = new Point(cx + dx * Math.cos(angle) - dy * Math.sin(angle),
+                    cy + dx * Math.sin(angle) + dy * Math.cos(angle));
+        }
+
+        // Composite the code into the background with a perspective warp
+        Mat frame = toMat(background);
+        Mat codeMat = toMat(toBGR(code));
+        int s = QRUtil.IMAGE_SIZE - 1;
+        Mat warpMat = Imgproc.getPerspectiveTransform(
+                new MatOfPoint2f(new Point(0, 0), new Point(s, 0), new Point(0, s), new Point(s, s)),
+                new MatOfPoint2f(corners));
+        Imgproc.warpPerspective(codeMat, frame, warpMat, frame.size(), Imgproc.INTER_LINEAR,
+                Core.BORDER_TRANSPARENT, new Scalar(0));
+
+        if (blur > 0) {
+            double sigma = 0.8 * blur;
+            Imgproc.GaussianBlur(frame, frame, new Size(0, 0), sigma);
+        }
+
+        BufferedImage result = toBufferedImage(frame);
+        if (glare > 0) {
+            addGlare(result, corners, Math.min(0.9, 0.3 * glare), size, rng);
+        }
+        if (noise > 0) {
+            addNoise(result, 8 * noise, rng);
+        }
+        if (jpeg > 0) {
+            int quality = (int) Math.max(5, 90 - 27 * jpeg);
+            MatOfByte encoded = new MatOfByte();
+            Imgcodecs.imencode(".jpg", toMat(result), encoded, new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, quality));
+            result = toBufferedImage(Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_COLOR));
+        }
+
+        return new Sample(bucket, text, result);
+    }
+
+    /**
+     * Returns a copy of the corpus with every frame scaled up by the specified
+     * factor.
+     */
+    public static List<Sample> upscale(List<Sample> corpus, double factor) {
+        List<Sample> upscaled = new ArrayList<>(corpus.size());
+        for (Sample sample : corpus) {
+            Mat original = toMat(sample.frame());
+            Mat frame = new Mat();
+            Imgproc.resize(original, frame, new Size(), factor, factor, Imgproc.INTER_LINEAR);
+            upscaled.add(new Sample(sample.bucket(), sample.text(), toBufferedImage(frame)));
+            original.release();
+            frame.release();
+        }
+        return upscaled;
+    }
+
+    /**
+     * Returns the calibration of a simulated wide-angle lens for frames of the
+     * specified size, with the principal point in the center and the specified
+     * radial distortion coefficient.
+     */
+    public static LensCalibration lensFor(int width, int height, double k1) {
+        double f = LENS_FOCAL_LENGTH * width;
+        return new LensCalibration(width, height, f, f, width / 2.0, height / 2.0, new double[] { k1, 0, 0, 0 });
+    }
+
+    /**
+     * Returns a copy of the corpus with every frame distorted as if seen through
+     * the lens with the specified calibration, taking each frame to be the
+     * middle of the undistorted view.
+     */
+    public static List<Sample> distort(List<Sample> corpus, LensCalibration calibration) {
+        // Each distorted pixel shows the undistorted view where the lens bends it
+        // from, so undistort every pixel position once
+        int width = calibration.getWidth();
+        int height = calibration.getHeight();
+        Point[] pixels = new Point[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = new Point(x, y);
+            }
+        }
+        Point[] sources = calibration.undistort(pixels);
+        Point center = calibration.undistort(new Point[] { new Point(width / 2.0, height / 2.0) })[0];
+        float[] xy = new float[sources.length * 2];
+        for (int i = 0; i < sources.length; i++) {
+            xy[i * 2] = (float) (sources[i].x - center.x + width / 2.0);
+            xy[i * 2 + 1] = (float) (sources[i].y - center.y + height / 2.0);
+        }
+        Mat map = new Mat(height, width, CvType.CV_32FC2);
+        map.put(0, 0, xy);
+
+        List<Sample> distorted = new ArrayList<>(corpus.size());
+        for (Sample sample : corpus) {
+            Mat original = toMat(sample.frame());
+            Mat frame = new Mat();
+            Imgproc.remap(original, frame, map, new Mat(), Imgproc.INTER_LINEAR, Core.BORDER_REPLICATE, new Scalar(0));
+            distorted.add(new Sample(sample.bucket(), sample.text(), toBufferedImage(frame)));
+            original.release();
+            frame.release();
+        }
+        map.release();
+        return distorted;
+    }
+
+    /**
+     * Runs the scan and decode path over every sample in the corpus. The first
+     * warm-up samples are scanned beforehand without being recorded so that the
+     * latencies are not dominated by JIT compilation. If soft is true, samples are
+     * scanned with QRDecoder, otherwise with Camera.scanQR and thresholding.
+     */
+    public static List<Result> run(List<Sample> corpus, int warmup, boolean soft) {
+        return run(corpus, warmup, soft, new QRDecoder());
+    }
+
+    /**
+     * Runs the soft decode path over every sample in the corpus with the
+     * specified decoder, and therefore its detector.
+     */
+    public static List<Result> run(List<Sample> corpus, int warmup, QRDecoder decoder) {
+        return run(corpus, warmup, true, decoder);
+    }
+
+    private static List<Result> run(List<Sample> corpus, int warmup, boolean soft, QRDecoder decoder) {
+        Camera camera = new Camera(null);
+
+        for (int i = 0; i < Math.min(warmup, corpus.size()); i++) {
+            scan(camera, decoder, corpus.get(i), soft);
+        }
+
+        List<Result> results = new ArrayList<>(corpus.size());
+        for (Sample sample : corpus) {
+            long start = System.nanoTime();
+            boolean success = scan(camera, decoder, sample, soft);
+            results.add(new Result(sample.bucket(), success, System.nanoTime() - start));
+        }
+        return results;
+    }
+
+    private static boolean scan(Camera camera, QRDecoder decoder, Sample sample, boolean soft) {
+        try {
+            String text;
+            if (soft) {
+                text = decoder.decode(sample.frame()).getText();
+            } else {
+                BufferedImage qrImage = camera.scanQR(sample.frame());
+                text = QRUtil.decode(QRUtil.qrToBooleanGrid(qrImage));
+            }
+            return sample.text().equals(text);
+        } catch (QRNotFoundException | InvalidQRException | RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Prints the success rate and latency percentiles for each bucket, in the order
+     * the buckets were generated.
+     */
+    public static void printReport(List<Result> results) {
+        Map<String, List<Result>> byBucket = new LinkedHashMap<>();
+        for (Result result : results) {
+            byBucket.computeIfAbsent(result.bucket(), k -> new ArrayList<>()).add(result);
+        }
+        byBucket.put("ALL", results);
+
+        System.out.printf("%-14s %6s %9s %9s %9s %9s %9s%n", "bucket", "n", "success", "p50 ms", "p90 ms", "p99 ms",
+                "max ms");
+        for (Map.Entry<String, List<Result>> entry : byBucket.entrySet()) {
+            List<Result> bucket = entry.getValue();
+            long[] nanos = new long[bucket.size()];
+            int successes = 0;
+            for (int i = 0; i < nanos.length; i++) {
+                nanos[i] = bucket.get(i).nanos();
+                if (bucket.get(i).success()) {
+                    successes++;
+                }
+            }
+            Arrays.sort(nanos);
+            System.out.printf("%-14s %6d %8.1f%% %9.2f %9.2f %9.2f %9.2f%n", entry.getKey(), nanos.length,
+                    100.0 * successes / nanos.length, percentile(nanos, 50), percentile(nanos, 90),
+                    percentile(nanos, 99), nanos[nanos.length - 1] / 1e6);
+        }
+    }
+
+    /**
+     * Returns the specified percentile, in milliseconds, of the sorted array of
+     * nanosecond latencies.
+     */
+    public static double percentile(long[] sortedNanos, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))] / 1e6;
+    }
+
+    public static void saveCorpus(List<Sample> corpus, File outDir) throws IOException {
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Could not create " + outDir);
+        }
+        for (int i = 0; i < corpus.size(); i++) {
+            Sample sample = corpus.get(i);
+            String fileName = String.format("%05d_%s.png", i, sample.bucket());
+            ImageIO.write(sample.frame(), "PNG", new File(outDir, fileName));
+        }
+    }
+
+    /**
+     * Returns a dictionary of the texts in the specified corpus and the specified
+     * number of other random codes.
+     */
+    private static CodewordDictionary dictionaryFor(List<Sample> corpus, int others, long seed) {
+        List<String> texts = new ArrayList<>(corpus.size() + others);
+        for (Sample sample : corpus) {
+            texts.add(sample.text());
+        }
+        Random rng = new Random(seed ^ 0x5DEECE66DL);
+        for (int i = 0; i < others; i++) {
+            texts.add(randomText(rng));
+        }
+        return CodewordDictionary.of(texts);
+    }
+
+    /**
+     * Returns 7 random characters that can be encoded, excluding the ignore
+     * character and the space so that the decoded text matches exactly.
+     */
+    private static String randomText(Random rng) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 7; i++) {
+            text.append(QRUtil.numToChar(rng.nextInt(62)));
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns a light background cluttered with random rectangles and lines.
+     */
+    private static BufferedImage randomBackground(Random rng) {
+        BufferedImage bg = new BufferedImage(FRAME_WIDTH, FRAME_HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g2d = bg.createGraphics();
+        int base = 120 + rng.nextInt(100);
+        g2d.setColor(new Color(base, base - rng.nextInt(20), base - rng.nextInt(30)));
+        g2d.fillRect(0, 0, FRAME_WIDTH, FRAME_HEIGHT);
+
+        for (int i = 0; i < 12; i++) {
+            g2d.setColor(new Color(rng.nextInt(256), rng.nextInt(256), rng.nextInt(256)));
+            int x = rng.nextInt(FRAME_WIDTH);
+            int y = rng.nextInt(FRAME_HEIGHT);
+            if (rng.nextBoolean()) {
+                g2d.fillRect(x, y, 10 + rng.nextInt(120), 10 + rng.nextInt(120));
+            } else {
+                g2d.setStroke(new BasicStroke(1 + rng.nextInt(4)));
+                g2d.drawLine(x, y, rng.nextInt(FRAME_WIDTH), rng.nextInt(FRAME_HEIGHT));
+            }
+        }
+        g2d.dispose();
+        return bg;
+    }
+
+    /**
+     * Brightens a random spot on the code with a white radial gradient of the
+     * specified peak opacity.
+     */
+    private static void addGlare(BufferedImage bimg, Point[] corners, double alpha, double size, Random rng) {
+        double t = rng.nextDouble();
+        double u = rng.nextDouble();
+        float x = (float) ((1 - t) * ((1 - u) * corners[0].x + u * corners[2].x) + t * ((1 - u) * corners[1].x + u * corners[3].x));
+        float y = (float) ((1 - t) * ((1 - u) * corners[0].y + u * corners[2].y) + t * ((1 - u) * corners[1].y + u * corners[3].y));
+        float radius = (float) (size * (0.3 + 0.3 * rng.nextDouble()));
+
+        Graphics2D g2d = bimg.createGraphics();
+        g2d.setPaint(new RadialGradientPaint(x, y, radius, new float[] { 0f, 1f },
+                new Color[] { new Color(1f, 1f, 1f, (float) alpha), new Color(1f, 1f, 1f, 0f) }));
+        g2d.fillRect(0, 0, bimg.getWidth(), bimg.getHeight());
+        g2d.dispose();
+    }
+
+    /**
+     * Adds Gaussian noise with the specified standard deviation to every channel of
+     * a 3-byte BGR image.
+     */
+    private static void addNoise(BufferedImage bimg, double sigma, Random rng) {
+        byte[] data = ((DataBufferByte) bimg.getRaster().getDataBuffer()).getData();
+        for (int i = 0; i < data.length; i++) {
+            int value = (data[i] & 0xFF) + (int) Math.round(rng.nextGaussian() * sigma);
+            data[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+    }
+
+    private static BufferedImage toBGR(BufferedImage bimg) {
+        BufferedImage bgr = new BufferedImage(bimg.getWidth(), bimg.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g2d = bgr.createGraphics();
+        g2d.drawImage(bimg, 0, 0, null);
+        g2d.dispose();
+        return bgr;
+    }
+
+    private static Mat toMat(BufferedImage bgr) {
+        Mat mat = new Mat(bgr.getHeight(), bgr.getWidth(), CvType.CV_8UC3);
+        mat.put(0, 0, ((DataBufferByte) bgr.getRaster().getDataBuffer()).getData());
+        return mat;
+    }
+
+    private static BufferedImage toBufferedImage(Mat mat) {
+        BufferedImage bgr = new BufferedImage(mat.cols(), mat.rows(), BufferedImage.TYPE_3BYTE_BGR);
+        mat.get(0, 0, ((DataBufferByte) bgr.getRaster().getDataBuffer()).getData());
+        // Keep the Mat reachable so that its finalizer cannot free the native
+        // memory during the copy
+        Reference.reachabilityFence(mat);
+        return bgr;
+    }
+
+    /**
+     * Mixes the corpus seed with a sample index (SplitMix64 finalizer) so that
+     * neighboring samples get uncorrelated random streams.
+     */
+    private static long mix(long seed, long index) {
+        long z = seed + 0x9E3779B97F4A7C15L * (index + 1);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+}
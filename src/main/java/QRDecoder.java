@@ -0,0 +1,439 @@
+import org.opencv.core.Point;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.imgproc.Moments;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds, warps and decodes the QR code in an image. A decoder holds no mutable
+ * state, so a single instance can be used from any number of threads at once.
+ */
+public class QRDecoder {
+
+    // Raised whenever a change to detection or decoding can change the result
+    // for the same image, so that stored results of older versions are not
+    // reused (see ResultCache)
+    public static final int VERSION = 1;
+
+    public static final int BORDER_SAMPLES_PER_SIDE = 8;
+    public static final double MIN_BORDER_CONTRAST = 30;
+    public static final double MIN_BORDER_MATCH = 0.75;
+    // With a lens calibration, if no code is found in the frame as it is, up to
+    // this many candidate regions reported by the detector are undistorted and
+    // searched, each extended by this fraction of its size so that the code's
+    // outer edge is in the region even where the candidate was its inner edge
+    public static final int MAX_UNDISTORTED_REGIONS = 3;
+    public static final double UNDISTORTED_REGION_MARGIN = 0.25;
+
+    private final Detector detector;
+    private final CodewordDictionary dictionary;
+    private final LensCalibration calibration;
+
+    /**
+     * A code's outline in a distorted frame, along with the undistorted region
+     * around it and the code's sorted corners in that region.
+     */
+    private record UndistortedOutline(Point[] outline, Mat region, Point[] corners) {
+    }
+
+    public QRDecoder() {
+        this(new ContourDetector());
+    }
+
+    /**
+     * Creates a decoder that finds codes with the specified detector, which must
+     * also be safe to use from several threads at once.
+     */
+    public QRDecoder(Detector detector) {
+        this(detector, null);
+    }
+
+    /**
+     * Creates a decoder as above that only decodes codes in the specified
+     * dictionary, correcting readings with a few wrong modules, or any valid
+     * code if the dictionary is null.
+     */
+    public QRDecoder(Detector detector, CodewordDictionary dictionary) {
+        this(detector, dictionary, null);
+    }
+
+    /**
+     * Creates a decoder as above for a camera with the specified lens
+     * calibration, or none if it is null. The modules of codes in frames of the
+     * calibrated size are sampled from the undistorted region around the code,
+     * and codes too bent to be found as they are are searched for in the
+     * undistorted candidate regions the detector reports in the same pass (see
+     * Detector.locate(Mat, List, int)); ScanlineDetector reports none, so with
+     * it only codes found as they are are read. Other frames are decoded as they
+     * are.
+     */
+    public QRDecoder(Detector detector, CodewordDictionary dictionary, LensCalibration calibration) {
+        Natives.load();
+        this.detector = detector;
+        this.dictionary = dictionary;
+        this.calibration = calibration;
+    }
+
+    public DetectionResult decode(BufferedImage image) {
+        Mat mat = toMat(image);
+        try {
+            return decode(mat);
+        } finally {
+            mat.release();
+        }
+    }
+
+    /**
+     * Finds the QR code in the specified BGR, BGRA or grayscale image and decodes
+     * it with QRUtil.softDecode, against the dictionary if there is one.
+     */
+    public DetectionResult decode(Mat image) {
+        long start = System.nanoTime();
+        Mat gray = toGray(image);
+        UndistortedOutline undistorted = null;
+        try {
+            Point[] outline;
+            if (calibration != null && calibration.appliesTo(gray)) {
+                undistorted = locateUndistorted(gray);
+                outline = undistorted != null ? undistorted.outline() : new Point[0];
+            } else {
+                outline = locate(gray);
+            }
+            Point[] corners = outline.length == 4 ? sortCorners(outline) : null;
+            long located = System.nanoTime();
+
+            if (corners == null) {
+                return new DetectionResult(DetectionResult.Status.NOT_FOUND, null, null, null, null, located - start,
+                        0, 0);
+            }
+
+            // With a calibration, the modules are sampled from the undistorted
+            // region, where the code's edges are straight and a perspective warp
+            // fits it
+            Mat warped = undistorted != null ? warp(undistorted.region(), undistorted.corners()) : warp(gray, corners);
+            double[][] darkness = QRUtil.sampleModules(toBufferedImage(warped));
+            warped.release();
+            long sampled = System.nanoTime();
+
+            try {
+                DecodeResult decodeResult = QRUtil.softDecode(darkness, dictionary);
+                return new DetectionResult(DetectionResult.Status.DECODED, outline, corners, darkness, decodeResult,
+                        located - start, sampled - located, System.nanoTime() - sampled);
+            } catch (InvalidQRException e) {
+                return new DetectionResult(DetectionResult.Status.INVALID, outline, corners, darkness, null,
+                        located - start, sampled - located, System.nanoTime() - sampled);
+            }
+        } finally {
+            // Free large frames' pixels now rather than whenever the Mat is finalized
+            if (gray != image) {
+                gray.release();
+            }
+            if (undistorted != null) {
+                undistorted.region().release();
+            }
+        }
+    }
+
+    /**
+     * Finds the QR code outline in the specified grayscale image with this
+     * decoder's detector, also in undistorted regions if the decoder has a lens
+     * calibration for the image's size. Returns the vertices of the outline in
+     * contour order, or an empty array if no code was found.
+     */
+    public Point[] locate(Mat gray) {
+        if (calibration == null || !calibration.appliesTo(gray)) {
+            return detector.locate(gray);
+        }
+        UndistortedOutline undistorted = locateUndistorted(gray);
+        if (undistorted == null) {
+            return new Point[0];
+        }
+        undistorted.region().release();
+        return undistorted.outline();
+    }
+
+    /**
+     * Finds the QR code in the specified distorted grayscale frame and
+     * undistorts the region around it. The detector is run on the frame as it
+     * is first, which finds most codes, since it allows for slightly bent edges;
+     * only the code's region is then undistorted. If it finds none, the
+     * candidate regions it reported in the same pass, whose edges may be too
+     * bent to be taken for a quadrilateral, are undistorted and searched one at
+     * a time.
+     * Returns null if no code was found.
+     */
+    private UndistortedOutline locateUndistorted(Mat gray) {
+        List<Rect> candidates = new ArrayList<>();
+        Point[] outline = detector.locate(gray, candidates, MAX_UNDISTORTED_REGIONS);
+        Point[] corners = outline.length == 4 ? sortCorners(outline) : null;
+        if (corners != null) {
+            // The undistorted corners lie within the undistorted bounding box
+            Rect bounds = calibration.undistortedRegion(Imgproc.boundingRect(new MatOfPoint(outline)), 0);
+            Point[] undistortedCorners = calibration.undistort(corners);
+            for (Point corner : undistortedCorners) {
+                corner.x -= bounds.x;
+                corner.y -= bounds.y;
+            }
+            return new UndistortedOutline(outline, calibration.undistortRegion(gray, bounds), undistortedCorners);
+        }
+
+        for (Rect candidate : candidates) {
+            Rect bounds = calibration.undistortedRegion(candidate, UNDISTORTED_REGION_MARGIN);
+            Mat region = calibration.undistortRegion(gray, bounds);
+            Point[] regionOutline = detector.locate(region);
+            Point[] regionCorners = regionOutline.length == 4 ? sortCorners(regionOutline) : null;
+            if (regionCorners != null) {
+                // Reports the outline in the frame's own coordinates
+                Point[] frameOutline = new Point[4];
+                for (int i = 0; i < 4; i++) {
+                    frameOutline[i] = calibration.distort(
+                            new Point(regionOutline[i].x + bounds.x, regionOutline[i].y + bounds.y));
+                }
+                return new UndistortedOutline(frameOutline, region, regionCorners);
+            }
+            region.release();
+        }
+        return null;
+    }
+
+    public Detector getDetector() {
+        return detector;
+    }
+
+    /**
+     * Returns the dictionary that readings are checked against, or null if any
+     * valid code is accepted.
+     */
+    public CodewordDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * Returns the lens calibration that frames are undistorted with, or null if
+     * they are decoded as they are.
+     */
+    public LensCalibration getCalibration() {
+        return calibration;
+    }
+
+    /**
+     * Returns the outline of the code whose border the specified quadrilateral
+     * is the outer or inner edge of, with the corners in contour order, or null
+     * if it is neither. Clutter touching a code often breaks up the outer edge,
+     * while the edge between the black and white bands is still clean.
+     */
+    public static Point[] borderOutline(Mat gray, Point[] quad) {
+        Point[] corners = sortCorners(quad);
+        if (corners == null) {
+            return null;
+        }
+
+        int imgSize = QRUtil.IMAGE_SIZE;
+        int inner = QRUtil.BLACK_BORDER;
+        Mat transform = borderTransform(gray, corners, 0, imgSize - 1);
+        if (transform == null) {
+            transform = borderTransform(gray, corners, inner, imgSize - 1 - inner);
+            if (transform == null) {
+                return null;
+            }
+        }
+
+        // Maps the outer corners of the code into the image, in contour order
+        MatOfPoint2f outline = new MatOfPoint2f();
+        Core.perspectiveTransform(new MatOfPoint2f(
+                new Point(0, 0),
+                new Point(imgSize - 1, 0),
+                new Point(imgSize - 1, imgSize - 1),
+                new Point(0, imgSize - 1)), outline, transform);
+        return outline.toArray();
+    }
+
+    /**
+     * Returns the transform from the code's own coordinates, as in the warped
+     * image, to the image if the specified sorted corners lie at the given code
+     * coordinates and there is a black band then a white band inside the code's
+     * edges, in the proportions given by QRUtil.BLACK_BORDER and
+     * QRUtil.WHITE_BORDER. Otherwise returns null. Points in the middle of each
+     * band are mapped into the image and compared in pairs, without warping the
+     * whole region.
+     */
+    private static Mat borderTransform(Mat gray, Point[] corners, double from, double to) {
+        MatOfPoint2f square = new MatOfPoint2f(
+                new Point(from, from),
+                new Point(to, from),
+                new Point(from, to),
+                new Point(to, to));
+        Mat transform = Imgproc.getPerspectiveTransform(square, new MatOfPoint2f(corners));
+
+        // Pairs of points in the middle of the black and white bands, spread along
+        // each of the four sides
+        int imgSize = QRUtil.IMAGE_SIZE;
+        double black = QRUtil.BLACK_BORDER / 2.0;
+        double white = QRUtil.BLACK_BORDER + QRUtil.WHITE_BORDER / 2.0;
+        int steps = BORDER_SAMPLES_PER_SIDE;
+        Point[] samples = new Point[steps * 8];
+        for (int i = 0; i < steps; i++) {
+            double t = QRUtil.BORDER_SIZE + (i + 0.5) * (imgSize - 2 * QRUtil.BORDER_SIZE) / steps;
+            int n = i * 8;
+            samples[n] = new Point(t, black);
+            samples[n + 1] = new Point(t, white);
+            samples[n + 2] = new Point(t, imgSize - 1 - black);
+            samples[n + 3] = new Point(t, imgSize - 1 - white);
+            samples[n + 4] = new Point(black, t);
+            samples[n + 5] = new Point(white, t);
+            samples[n + 6] = new Point(imgSize - 1 - black, t);
+            samples[n + 7] = new Point(imgSize - 1 - white, t);
+        }
+        MatOfPoint2f mapped = new MatOfPoint2f();
+        Core.perspectiveTransform(new MatOfPoint2f(samples), mapped, transform);
+        Point[] points = mapped.toArray();
+
+        // Counts the pairs where the white band is clearly lighter than the black
+        int matches = 0;
+        for (int i = 0; i < points.length; i += 2) {
+            double blackValue = sample(gray, points[i]);
+            double whiteValue = sample(gray, points[i + 1]);
+            if (whiteValue - blackValue >= MIN_BORDER_CONTRAST) {
+                matches++;
+            }
+        }
+        return matches >= MIN_BORDER_MATCH * points.length / 2 ? transform : null;
+    }
+
+    private static double sample(Mat gray, Point p) {
+        int x = (int) Math.round(p.x);
+        int y = (int) Math.round(p.y);
+        if (x < 0 || y < 0 || x >= gray.cols() || y >= gray.rows()) {
+            return 0;
+        }
+        return gray.get(y, x)[0];
+    }
+
+    /**
+     * Returns the vertices of the specified outline sorted relative to its center
+     * of mass as top-left, top-right, bottom-left and bottom-right, or null if
+     * they cannot all be sorted.
+     */
+    public static Point[] sortCorners(Point[] outline) {
+        // Calculate center of mass of contour image using moments
+        Moments moment = Imgproc.moments(new MatOfPoint2f(outline));
+        if (moment.get_m00() == 0) {
+            return null;
+        }
+        double x = moment.get_m10() / moment.get_m00();
+        double y = moment.get_m01() / moment.get_m00();
+
+        // Sort points relative to center of mass
+        Point[] sortedPoints = new Point[4];
+        for (Point p : outline) {
+            if (p.x < x && p.y < y) {
+                sortedPoints[0] = p.clone();
+            } else if (p.x > x && p.y < y) {
+                sortedPoints[1] = p.clone();
+            } else if (p.x < x && p.y > y) {
+                sortedPoints[2] = p.clone();
+            } else if (p.x > x && p.y > y) {
+                sortedPoints[3] = p.clone();
+            }
+        }
+
+        for (Point p : sortedPoints) {
+            if (p == null) {
+                return null;
+            }
+        }
+        return sortedPoints;
+    }
+
+    /**
+     * Returns the region of the image inside the specified sorted corners fitted
+     * to a square image with the size specified by QRUtil.
+     */
+    public static Mat warp(Mat image, Point[] corners) {
+        int imgSize = QRUtil.IMAGE_SIZE;
+
+        MatOfPoint2f src = new MatOfPoint2f(corners[0], corners[1], corners[2], corners[3]);
+        MatOfPoint2f dst = new MatOfPoint2f(
+                new Point(0, 0),
+                new Point(imgSize - 1, 0),
+                new Point(0, imgSize - 1),
+                new Point(imgSize - 1, imgSize - 1));
+
+        Mat warpMat = Imgproc.getPerspectiveTransform(src, dst);
+
+        Mat destImg = new Mat();
+        Imgproc.warpPerspective(image, destImg, warpMat, new Size(imgSize, imgSize));
+        return destImg;
+    }
+
+    /**
+     * Returns a single-channel copy of the specified BGR or BGRA image, or the
+     * image itself if it is already grayscale.
+     */
+    public static Mat toGray(Mat image) {
+        if (image.channels() == 1) {
+            return image;
+        }
+        Mat gray = new Mat();
+        Imgproc.cvtColor(image, gray, image.channels() == 4 ? Imgproc.COLOR_BGRA2GRAY : Imgproc.COLOR_BGR2GRAY);
+        return gray;
+    }
+
+    /**
+     * Copies the pixels of the specified image into a Mat: single-channel for
+     * grayscale images and BGR for everything else.
+     */
+    public static Mat toMat(BufferedImage bimg) {
+        // Copy the raster directly unless the image has another layout or is a
+        // subimage sharing a larger raster
+        int channels = bimg.getType() == BufferedImage.TYPE_BYTE_GRAY ? 1 : 3;
+        boolean direct = (bimg.getType() == BufferedImage.TYPE_BYTE_GRAY
+                || bimg.getType() == BufferedImage.TYPE_3BYTE_BGR)
+                && ((DataBufferByte) bimg.getRaster().getDataBuffer()).getData().length
+                == bimg.getWidth() * bimg.getHeight() * channels;
+        if (!direct) {
+            BufferedImage bgr = new BufferedImage(bimg.getWidth(), bimg.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            Graphics2D g2d = bgr.createGraphics();
+            g2d.drawImage(bimg, 0, 0, null);
+            g2d.dispose();
+            bimg = bgr;
+        }
+
+        int type = bimg.getType() == BufferedImage.TYPE_BYTE_GRAY ? CvType.CV_8UC1 : CvType.CV_8UC3;
+        Mat mat = new Mat(bimg.getHeight(), bimg.getWidth(), type);
+        mat.put(0, 0, ((DataBufferByte) bimg.getRaster().getDataBuffer()).getData());
+        return mat;
+    }
+
+    /**
+     * Copies the pixels of the specified single-channel, BGR or BGRA Mat into a
+     * new BufferedImage, dropping any alpha channel.
+     */
+    public static BufferedImage toBufferedImage(Mat mat) {
+        if (mat.channels() == 4) {
+            Mat bgr = new Mat();
+            Imgproc.cvtColor(mat, bgr, Imgproc.COLOR_BGRA2BGR);
+            BufferedImage bimg = toBufferedImage(bgr);
+            bgr.release();
+            return bimg;
+        }
+        int type = switch (mat.channels()) {
+            case 1 -> BufferedImage.TYPE_BYTE_GRAY;
+            case 3 -> BufferedImage.TYPE_3BYTE_BGR;
+            default -> throw new IllegalArgumentException("Unsupported channel count: " + mat.channels());
+        };
+        BufferedImage bimg = new BufferedImage(mat.cols(), mat.rows(), type);
+        mat.get(0, 0, ((DataBufferByte) bimg.getRaster().getDataBuffer()).getData());
+        // Keep the Mat reachable so that its finalizer cannot free the native
+        // memory during the copy
+        Reference.reachabilityFence(mat);
+        return bimg;
+    }
+
+}
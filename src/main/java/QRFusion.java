@@ -0,0 +1,166 @@
+import org.opencv.core.Point;
+
+/**
+ * Fuses module evidence for a QR code that stays in view across consecutive
+ * frames. While the code's outline stays put, the sampled module darkness
+ * values are summed in the normalized module grid and the average is decoded
+ * after every frame, so a steady code can be read even when no single frame
+ * is clean enough on its own. The evidence is discarded when the code moves,
+ * is lost, or has not decoded within the window.
+ */
+public class QRFusion {
+
+    public static final int DEFAULT_WINDOW = 8;
+    public static final double DEFAULT_TOLERANCE = 0.15;
+    public static final int DEFAULT_CONFIRMATIONS = 2;
+    public static final double CLEAN_CONFIDENCE = 0.95;
+
+    private final int window;
+    private final double tolerance;
+    private final int confirmations;
+    private final CodewordDictionary dictionary;
+
+    private Point[] trackedCorners;
+    private double[][] sums;
+    private int frames;
+    private String lastText;
+    private int agreements;
+
+    public QRFusion() {
+        this(null);
+    }
+
+    /**
+     * Creates a fusion stage with the default settings that only accepts codes in
+     * the specified dictionary, or any valid code if it is null.
+     */
+    public QRFusion(CodewordDictionary dictionary) {
+        this(DEFAULT_WINDOW, DEFAULT_TOLERANCE, DEFAULT_CONFIRMATIONS, dictionary);
+    }
+
+    /**
+     * Creates a fusion stage that gives up after the specified number of frames.
+     * A code is considered the same as in the previous frame if none of its
+     * corners moved by more than the tolerance, as a fraction of the code's size.
+     * A reading is accepted once the fused evidence has decoded to the same text
+     * for the specified number of consecutive frames, or immediately if it decoded
+     * cleanly without any flipped modules.
+     */
+    public QRFusion(int window, double tolerance, int confirmations) {
+        this(window, tolerance, confirmations, null);
+    }
+
+    public QRFusion(int window, double tolerance, int confirmations, CodewordDictionary dictionary) {
+        this.window = window;
+        this.tolerance = tolerance;
+        this.confirmations = confirmations;
+        this.dictionary = dictionary;
+    }
+
+    /**
+     * Adds a frame's evidence to the track and attempts to decode the fused
+     * evidence. The corners are those of a DetectionResult, or null if no code
+     * was found in the frame, and the darkness values are those returned by
+     * QRUtil.sampleModules. Returns the decoded result, or null if the code
+     * cannot be read yet.
+     */
+    public DecodeResult update(Point[] corners, double[][] darkness) {
+        if (corners == null || darkness == null || hasNull(corners)) {
+            reset();
+            return null;
+        }
+
+        // Start a new track if the code moved or the previous track gave up
+        if (trackedCorners == null || frames >= window || !isSameQuad(trackedCorners, corners)) {
+            reset();
+            sums = new double[darkness.length][darkness[0].length];
+        }
+        trackedCorners = corners;
+
+        for (int r = 0; r < sums.length; r++) {
+            for (int c = 0; c < sums[r].length; c++) {
+                sums[r][c] += darkness[r][c];
+            }
+        }
+        frames++;
+
+        // The checksum is weak, so a noisy early frame can decode to the wrong text.
+        // Only accept a reading once the fused evidence has agreed on it for
+        // consecutive frames, unless it is already clean.
+        DecodeResult result;
+        try {
+            result = QRUtil.softDecode(getFusedDarkness(), dictionary);
+        } catch (InvalidQRException e) {
+            lastText = null;
+            agreements = 0;
+            return null;
+        }
+        agreements = result.getText().equals(lastText) ? agreements + 1 : 1;
+        lastText = result.getText();
+        boolean clean = result.getFlippedModules() == 0 && result.getConfidence() >= CLEAN_CONFIDENCE;
+        if (agreements >= confirmations || clean) {
+            reset();
+            return result;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the average darkness of each module over the frames in the current
+     * track, or null if nothing is being tracked.
+     */
+    public double[][] getFusedDarkness() {
+        if (sums == null) {
+            return null;
+        }
+        double[][] fused = new double[sums.length][sums[0].length];
+        for (int r = 0; r < sums.length; r++) {
+            for (int c = 0; c < sums[r].length; c++) {
+                fused[r][c] = sums[r][c] / frames;
+            }
+        }
+        return fused;
+    }
+
+    /**
+     * Returns the number of frames fused into the current track.
+     */
+    public int getFrames() {
+        return frames;
+    }
+
+    /**
+     * Discards all accumulated evidence.
+     */
+    public void reset() {
+        trackedCorners = null;
+        sums = null;
+        frames = 0;
+        lastText = null;
+        agreements = 0;
+    }
+
+    private boolean isSameQuad(Point[] a, Point[] b) {
+        double size = Math.max(distance(a[0], a[3]), distance(a[1], a[2])) / Math.sqrt(2);
+        for (int i = 0; i < a.length; i++) {
+            if (distance(a[i], b[i]) > tolerance * size) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean hasNull(Point[] corners) {
+        for (Point p : corners) {
+            if (p == null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static double distance(Point a, Point b) {
+        return Math.hypot(a.x - b.x, a.y - b.y);
+    }
+
+}
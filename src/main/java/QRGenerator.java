@@ -96,12 +96,14 @@ public class QRGenerator {
                     fileName = qrText;
                 }
 
-                try {
-                    ImageIO.write(qrImage, "PNG", new File(imageDirectory + fileName + ".png"));
-                } catch (IOException ex) {
-                    System.out.println("WRITE IMAGE FAILED!! " + fileName);
-                    ex.printStackTrace();
-                }
+                // Written in the background, so that the window stays responsive
+                String name = fileName;
+                AsyncImageWriter.getDefault().submit(qrImage, name + ".png").whenComplete((path, ex) -> {
+                    if (ex != null) {
+                        System.out.println("WRITE IMAGE FAILED!! " + name);
+                        ex.printStackTrace();
+                    }
+                });
             }
         });
         frame.getContentPane().add(saveButton);
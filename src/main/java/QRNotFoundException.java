@@ -4,4 +4,8 @@ public class QRNotFoundException extends Exception {
         super("QR code not found!");
     }
 
+    public QRNotFoundException(String message) {
+        super(message);
+    }
+
 }
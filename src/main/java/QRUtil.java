@@ -1,5 +1,9 @@
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
 
 public class QRUtil {
 
@@ -11,6 +15,15 @@ public class QRUtil {
     public static final int BORDER_SIZE = BLACK_BORDER + WHITE_BORDER; // 25
     public static final int IMAGE_SIZE = SQUARE_SIZE * 7 + BORDER_SIZE * 2; // 330
 
+    // Limits on the flip search in softDecode: the number of least-confident
+    // modules considered, the confidence above which a module is never flipped,
+    // the maximum total confidence flipped, and the maximum grids tried. The
+    // checksum only has 3 bits, so an unbounded search would always "succeed".
+    public static final int SOFT_DECODE_CANDIDATES = 16;
+    public static final double SOFT_DECODE_MAX_FLIP_CONFIDENCE = 0.5;
+    public static final double SOFT_DECODE_MAX_COST = 1.0;
+    public static final int SOFT_DECODE_BUDGET = 512;
+
     public static String readAndDecode(BufferedImage bimg) throws InvalidQRException {
         return decode(qrToBooleanGrid(bimg));
     }
@@ -181,6 +194,275 @@ public class QRUtil {
         return text.toString();
     }
 
+    /**
+     * Returns the darkness of each module in the specified image of a QR code, from
+     * 0 (white) to 1 (black). The black and white levels are calibrated from the
+     * code's own borders, so the values can be read as the probability that each
+     * module is on.
+     */
+    public static double[][] sampleModules(BufferedImage bimg) {
+        BufferedImage gray = new BufferedImage(IMAGE_SIZE, IMAGE_SIZE, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g2d = gray.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(bimg, 0, 0, IMAGE_SIZE, IMAGE_SIZE, null);
+        g2d.dispose();
+        Raster raster = gray.getRaster();
+
+        // Calibrate from the middle of the black and white border bands
+        double black = borderMean(raster, 4, BLACK_BORDER - 4);
+        double white = borderMean(raster, BLACK_BORDER + 2, BORDER_SIZE - 2);
+        double range = Math.max(white - black, 1);
+
+        // Average the center half of each module to ignore blurred edges
+        double[][] darkness = new double[7][7];
+        int margin = SQUARE_SIZE / 4;
+        int span = SQUARE_SIZE - 2 * margin;
+        for (int r = 0; r < darkness.length; r++) {
+            for (int c = 0; c < darkness[r].length; c++) {
+                int x0 = BORDER_SIZE + c * SQUARE_SIZE + margin;
+                int y0 = BORDER_SIZE + r * SQUARE_SIZE + margin;
+                double sum = 0;
+                for (int x = x0; x < x0 + span; x++) {
+                    for (int y = y0; y < y0 + span; y++) {
+                        sum += raster.getSample(x, y, 0);
+                    }
+                }
+                double mean = sum / (span * span);
+                darkness[r][c] = Math.max(0, Math.min(1, (white - mean) / range));
+            }
+        }
+
+        return darkness;
+    }
+
+    /**
+     * Returns the mean intensity of the pixels whose distance from the nearest
+     * image edge is at least {@code from} and less than {@code to}.
+     */
+    private static double borderMean(Raster raster, int from, int to) {
+        double sum = 0;
+        int count = 0;
+        for (int d = from; d < to; d++) {
+            for (int i = from; i < IMAGE_SIZE - from; i++) {
+                sum += raster.getSample(i, d, 0) + raster.getSample(i, IMAGE_SIZE - 1 - d, 0)
+                        + raster.getSample(d, i, 0) + raster.getSample(IMAGE_SIZE - 1 - d, i, 0);
+                count += 4;
+            }
+        }
+        return sum / count;
+    }
+
+    public static DecodeResult softDecode(double[][] darkness) throws InvalidQRException {
+        return softDecode(darkness, SOFT_DECODE_BUDGET);
+    }
+
+    /**
+     * Decodes the grid of module darkness values returned by sampleModules. If the
+     * thresholded grid fails the orientation or checksum check, flips of the
+     * least-confident modules are tried in order of decreasing likelihood until one
+     * decodes or the maximum number of attempts is reached.
+     */
+    public static DecodeResult softDecode(double[][] darkness, int maxAttempts) throws InvalidQRException {
+        return softDecode(darkness, maxAttempts, null);
+    }
+
+    /**
+     * Decodes like softDecode, but if the specified dictionary is not null only
+     * accepts a reading in it, so that the flip search goes on past valid codes
+     * that are not in the dictionary.
+     */
+    private static DecodeResult softDecode(double[][] darkness, int maxAttempts, CodewordDictionary dictionary)
+            throws InvalidQRException {
+        final int rows = darkness.length;
+        final int cols = darkness[0].length;
+
+        boolean[][] grid = new boolean[rows][cols];
+        double[] confidence = new double[rows * cols];
+        Integer[] order = new Integer[rows * cols];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                grid[r][c] = darkness[r][c] > 0.5;
+                confidence[r * cols + c] = Math.abs(2 * darkness[r][c] - 1);
+                order[r * cols + c] = r * cols + c;
+            }
+        }
+
+        // The cost of flipping a module is its confidence, so cheaper flip sets are
+        // more likely to be the true reading
+        Arrays.sort(order, Comparator.comparingDouble(i -> confidence[i]));
+        int candidates = 0;
+        while (candidates < Math.min(SOFT_DECODE_CANDIDATES, order.length)
+                && confidence[order[candidates]] < SOFT_DECODE_MAX_FLIP_CONFIDENCE) {
+            candidates++;
+        }
+        final int k = candidates;
+        double[] cost = new double[k];
+        for (int i = 0; i < k; i++) {
+            cost[i] = confidence[order[i]];
+        }
+
+        try {
+            String text = decode(grid);
+            if (dictionary == null || dictionary.contains(pack(grid))) {
+                return new DecodeResult(text, grid, 0, readingConfidence(darkness, grid));
+            }
+        } catch (InvalidQRException e) {
+            // Fall through to the flip search
+        }
+
+        // Enumerate flip sets in order of increasing total cost. Each set spawns one
+        // set with the next module added and one with its last module swapped for
+        // the next, which visits every subset exactly once.
+        PriorityQueue<FlipSet> queue = new PriorityQueue<>(Comparator.comparingDouble(FlipSet::cost));
+        if (k > 0) {
+            queue.add(new FlipSet(cost[0], 0, 1L));
+        }
+        int attempts = 1;
+        while (!queue.isEmpty() && attempts < maxAttempts) {
+            FlipSet set = queue.poll();
+            if (set.cost() > SOFT_DECODE_MAX_COST) {
+                break;
+            }
+            attempts++;
+
+            boolean[][] flipped = new boolean[rows][];
+            for (int r = 0; r < rows; r++) {
+                flipped[r] = grid[r].clone();
+            }
+            for (int i = 0; i <= set.last(); i++) {
+                if ((set.mask() & (1L << i)) != 0) {
+                    int module = order[i];
+                    flipped[module / cols][module % cols] ^= true;
+                }
+            }
+
+            try {
+                String text = decode(flipped);
+                if (dictionary == null || dictionary.contains(pack(flipped))) {
+                    return new DecodeResult(text, flipped, Long.bitCount(set.mask()),
+                            readingConfidence(darkness, flipped));
+                }
+            } catch (InvalidQRException e) {
+                // Try the next most likely flip set
+            }
+
+            int next = set.last() + 1;
+            if (next < k) {
+                queue.add(new FlipSet(set.cost() + cost[next], next, set.mask() | (1L << next)));
+                queue.add(new FlipSet(set.cost() - cost[set.last()] + cost[next], next,
+                        (set.mask() & ~(1L << set.last())) | (1L << next)));
+            }
+        }
+
+        throw new InvalidQRException((dictionary == null ? "No valid reading" : "No code in the dictionary")
+                + " found in " + attempts + " attempts.");
+    }
+
+    /**
+     * Decodes the grid of module darkness values like softDecode, but only
+     * accepts codes in the specified dictionary, unless it is null. The
+     * thresholded grid is first matched against the dictionary within
+     * CodewordDictionary.DEFAULT_MAX_DISTANCE modules, which also corrects
+     * wrong orientation bits; failing that, the flip search must find a code in
+     * the dictionary.
+     */
+    public static DecodeResult softDecode(double[][] darkness, CodewordDictionary dictionary)
+            throws InvalidQRException {
+        if (dictionary == null) {
+            return softDecode(darkness);
+        }
+
+        boolean[][] grid = new boolean[darkness.length][darkness[0].length];
+        for (int r = 0; r < grid.length; r++) {
+            for (int c = 0; c < grid[r].length; c++) {
+                grid[r][c] = darkness[r][c] > 0.5;
+            }
+        }
+        long reading = pack(grid);
+        int match = dictionary.find(reading, CodewordDictionary.DEFAULT_MAX_DISTANCE);
+        if (match == CodewordDictionary.AMBIGUOUS) {
+            throw new InvalidQRException("Reading is equally close to several codes in the dictionary.");
+        }
+        if (match >= 0) {
+            long entry = dictionary.getEntry(match);
+            boolean[][] corrected = unpack(entry);
+            return new DecodeResult(decode(corrected), corrected, Long.bitCount(entry ^ reading),
+                    readingConfidence(darkness, corrected));
+        }
+
+        return softDecode(darkness, SOFT_DECODE_BUDGET, dictionary);
+    }
+
+    /**
+     * A set of modules to flip, as a bit mask over the least-confident modules,
+     * along with the highest set bit and the total cost of the flips.
+     */
+    private record FlipSet(double cost, int last, long mask) {
+    }
+
+    /**
+     * Returns the mean probability of the specified reading given the sampled
+     * module darkness values.
+     */
+    private static double readingConfidence(double[][] darkness, boolean[][] grid) {
+        double sum = 0;
+        int count = 0;
+        for (int r = 0; r < grid.length; r++) {
+            for (int c = 0; c < grid[r].length; c++) {
+                sum += grid[r][c] ? darkness[r][c] : 1 - darkness[r][c];
+                count++;
+            }
+        }
+        return sum / count;
+    }
+
+    /**
+     * Packs the specified 7x7 grid into the low 49 bits of a long, row by row
+     * from the most significant bit, so that codewords can be stored, hashed and
+     * compared as primitives.
+     */
+    public static long pack(boolean[][] grid) {
+        long codeword = 0;
+        for (boolean[] row : grid) {
+            for (boolean module : row) {
+                codeword = (codeword << 1) | (module ? 1 : 0);
+            }
+        }
+        return codeword;
+    }
+
+    /**
+     * Returns the 7x7 grid packed into the specified codeword by pack.
+     */
+    public static boolean[][] unpack(long codeword) {
+        boolean[][] grid = new boolean[7][7];
+        for (int i = 48; i >= 0; i--) {
+            grid[i / 7][i % 7] = (codeword & 1) != 0;
+            codeword >>>= 1;
+        }
+        return grid;
+    }
+
+    /**
+     * Returns the codeword of the specified reading, i.e. its grid in the
+     * canonical orientation, packed by pack.
+     */
+    public static long codeword(DecodeResult result) {
+        try {
+            return pack(orient(result.getGrid()));
+        } catch (InvalidQRException e) {
+            // Decoded grids always have exactly one orientation bit off
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Returns the codeword that encodes the specified text.
+     */
+    public static long codeword(String text) {
+        return pack(encode(text));
+    }
+
     public static char numToChar(int i) {
         return CHARS.charAt(i);
     }
@@ -0,0 +1,341 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads uncompressed Y4M or raw 8-bit grayscale video by memory-mapping the
+ * file. Each frame is handed out as a grayscale Mat that points straight into
+ * the mapping, i.e. the Y plane of a Y4M frame, so no pixel is copied or
+ * converted before detection. Frames can be read in any order and from any
+ * number of threads, and decodeAll splits the video into frame ranges that
+ * are decoded in parallel.
+ * <p>
+ * The file is mapped read-only, so frames must not be written to; the
+ * detection and decode pipeline only reads its input, and anything else should
+ * clone the frame first. Frames are only valid while the reader is reachable,
+ * since the mapping goes away when it is collected.
+ * <p>
+ * As a FrameSource, the reader returns the frames in order, as fast as they are
+ * grabbed.
+ * <p>
+ * Usage: {@code RawVideoReader PATH [--size=WxH] [--threads=N] [--detector=NAME]}, where --size
+ * is required for raw grayscale files.
+ */
+public class RawVideoReader implements FrameSource {
+
+    private static final String Y4M_MAGIC = "YUV4MPEG2 ";
+    private static final String Y4M_FRAME = "FRAME";
+    private static final int MAX_HEADER_SIZE = 1024;
+    // A single mapping is limited to 2 GB, so larger files are mapped in pieces
+    // that each hold whole frames
+    private static final long MAX_MAPPING_SIZE = Integer.MAX_VALUE;
+
+    private final String name;
+    private final int width;
+    private final int height;
+    private final double frameRate;
+    private final List<MappedByteBuffer> mappings = new ArrayList<>();
+    private final int[] frameMapping;
+    private final int[] frameOffset;
+    private int next = 0;
+
+    private RawVideoReader(String name, FileChannel channel, int width, int height, double frameRate,
+                           long[] lumaOffsets) throws IOException {
+        Natives.load();
+
+        this.name = name;
+        this.width = width;
+        this.height = height;
+        this.frameRate = frameRate;
+
+        // Map runs of whole frames, each run as large as a mapping allows
+        int frameSize = width * height;
+        frameMapping = new int[lumaOffsets.length];
+        frameOffset = new int[lumaOffsets.length];
+        int first = 0;
+        while (first < lumaOffsets.length) {
+            long start = lumaOffsets[first];
+            int last = first;
+            while (last + 1 < lumaOffsets.length && lumaOffsets[last + 1] + frameSize - start <= MAX_MAPPING_SIZE) {
+                last++;
+            }
+            for (int i = first; i <= last; i++) {
+                frameMapping[i] = mappings.size();
+                frameOffset[i] = (int) (lumaOffsets[i] - start);
+            }
+            mappings.add(channel.map(FileChannel.MapMode.READ_ONLY, start, lumaOffsets[last] + frameSize - start));
+            first = last + 1;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        String path = null;
+        int width = 0, height = 0;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String detectorName = "contour";
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--size=")) {
+                String[] size = value.split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else if (arg.startsWith("--threads=")) {
+                threads = Integer.parseInt(value);
+            } else if (arg.startsWith("--detector=")) {
+                detectorName = value;
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            } else {
+                path = arg;
+            }
+        }
+        if (path == null) {
+            throw new IllegalArgumentException("A video file is required");
+        }
+
+        try (RawVideoReader reader = width > 0
+                ? openRaw(Paths.get(path), width, height)
+                : openY4M(Paths.get(path))) {
+            long start = System.nanoTime();
+            List<DetectionResult> results = reader.decodeAll(new QRDecoder(Detector.forName(detectorName)),
+                    threads);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            // Print each new reading with the frame it first appeared in
+            String lastText = null;
+            int decoded = 0;
+            for (int i = 0; i < results.size(); i++) {
+                String text = results.get(i).getText();
+                if (text != null) {
+                    decoded++;
+                    if (!text.equals(lastText)) {
+                        System.out.println("frame " + i + ": " + text);
+                        lastText = text;
+                    }
+                }
+            }
+            System.err.printf("%d of %d %dx%d frames decoded in %.2f s (%.1f fps) on %d threads%n", decoded,
+                    results.size(), reader.getWidth(), reader.getHeight(), seconds, results.size() / seconds,
+                    threads);
+        }
+    }
+
+    /**
+     * Opens the specified Y4M file. Frames are read from its Y plane, whatever
+     * the chroma subsampling.
+     */
+    public static RawVideoReader openY4M(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            String header = readLine(channel, 0);
+            if (header == null || !header.startsWith(Y4M_MAGIC)) {
+                throw new IOException("Not a Y4M file: " + path);
+            }
+
+            int width = 0, height = 0;
+            double frameRate = 0;
+            String colorspace = "420jpeg";
+            for (String token : header.substring(Y4M_MAGIC.length()).trim().split(" ")) {
+                if (token.isEmpty()) {
+                    continue;
+                }
+                String value = token.substring(1);
+                switch (token.charAt(0)) {
+                    case 'W' -> width = Integer.parseInt(value);
+                    case 'H' -> height = Integer.parseInt(value);
+                    case 'F' -> {
+                        String[] ratio = value.split(":");
+                        frameRate = Double.parseDouble(ratio[0]) / Double.parseDouble(ratio[1]);
+                    }
+                    case 'C' -> colorspace = value;
+                    default -> {
+                        // Interlacing, aspect ratio and comments do not matter here
+                    }
+                }
+            }
+            if (width <= 0 || height <= 0) {
+                throw new IOException("Y4M header without a frame size: " + header);
+            }
+            long frameSize = (long) width * height + chromaSize(colorspace, width, height);
+
+            // Find the frames, whose headers may carry parameters of their own
+            List<Long> offsets = new ArrayList<>();
+            long position = header.length() + 1;
+            long fileSize = channel.size();
+            while (position < fileSize) {
+                String frameHeader = readLine(channel, position);
+                if (frameHeader == null || !frameHeader.startsWith(Y4M_FRAME)) {
+                    throw new IOException("Bad Y4M frame header at offset " + position);
+                }
+                long luma = position + frameHeader.length() + 1;
+                if (luma + frameSize > fileSize) {
+                    break;
+                }
+                offsets.add(luma);
+                position = luma + frameSize;
+            }
+
+            long[] lumaOffsets = offsets.stream().mapToLong(Long::longValue).toArray();
+            return new RawVideoReader("y4m:" + path, channel, width, height, frameRate, lumaOffsets);
+        }
+    }
+
+    /**
+     * Opens the specified file of raw 8-bit grayscale frames of the specified
+     * size, one after the other without headers.
+     */
+    public static RawVideoReader openRaw(Path path, int width, int height) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long frameSize = (long) width * height;
+            long[] lumaOffsets = new long[(int) (channel.size() / frameSize)];
+            for (int i = 0; i < lumaOffsets.length; i++) {
+                lumaOffsets[i] = i * frameSize;
+            }
+            return new RawVideoReader("raw:" + width + "x" + height + ":" + path, channel, width, height, 0,
+                    lumaOffsets);
+        }
+    }
+
+    /**
+     * Returns the size of the chroma planes of a frame in the specified Y4M
+     * colorspace.
+     */
+    private static long chromaSize(String colorspace, int width, int height) throws IOException {
+        long halfWidth = (width + 1) / 2;
+        long halfHeight = (height + 1) / 2;
+        if (colorspace.startsWith("420")) {
+            return 2 * halfWidth * halfHeight;
+        } else if (colorspace.equals("422")) {
+            return 2 * halfWidth * height;
+        } else if (colorspace.equals("444")) {
+            return 2L * width * height;
+        } else if (colorspace.equals("444alpha")) {
+            return 3L * width * height;
+        } else if (colorspace.equals("mono")) {
+            return 0;
+        }
+        throw new IOException("Unsupported Y4M colorspace: " + colorspace);
+    }
+
+    /**
+     * Returns the line starting at the specified position, without its newline,
+     * or null if there is no newline within MAX_HEADER_SIZE bytes.
+     */
+    private static String readLine(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        channel.read(buffer, position);
+        for (int i = 0; i < buffer.position(); i++) {
+            if (buffer.get(i) == '\n') {
+                return new String(buffer.array(), 0, i, StandardCharsets.US_ASCII);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns a read-only view of the pixels of the specified frame, row by row.
+     */
+    public ByteBuffer frameBuffer(int index) {
+        return mappings.get(frameMapping[index]).slice(frameOffset[index], width * height).asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the specified frame as a grayscale Mat that points into the
+     * mapping. Releasing the Mat only frees its header.
+     */
+    public Mat frame(int index) {
+        // The Mat takes the address of the buffer itself, so slice at the frame
+        ByteBuffer pixels = mappings.get(frameMapping[index]).slice(frameOffset[index], width * height);
+        return new Mat(height, width, CvType.CV_8UC1, pixels);
+    }
+
+    /**
+     * Decodes every frame with the specified decoder on the specified number of
+     * threads, each taking a contiguous range of frames so that reads stay
+     * sequential. Returns the results in frame order.
+     */
+    public List<DetectionResult> decodeAll(QRDecoder decoder, int threads)
+            throws InterruptedException, ExecutionException {
+        int frames = getFrameCount();
+        int ranges = Math.max(1, Math.min(threads, frames));
+        ExecutorService pool = Executors.newFixedThreadPool(ranges);
+        try {
+            List<Future<DetectionResult[]>> futures = new ArrayList<>();
+            for (int r = 0; r < ranges; r++) {
+                final int from = (int) ((long) frames * r / ranges);
+                final int to = (int) ((long) frames * (r + 1) / ranges);
+                futures.add(pool.submit(() -> {
+                    DetectionResult[] results = new DetectionResult[to - from];
+                    for (int i = from; i < to; i++) {
+                        Mat frame = frame(i);
+                        results[i - from] = decoder.decode(frame);
+                        frame.release();
+                    }
+                    return results;
+                }));
+            }
+
+            List<DetectionResult> results = new ArrayList<>(frames);
+            for (Future<DetectionResult[]> future : futures) {
+                results.addAll(List.of(future.get()));
+            }
+            return results;
+        } finally {
+            pool.shutdown();
+            // Keep the mappings alive until every frame has been decoded
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Mat grab() {
+        return next < getFrameCount() ? frame(next++) : null;
+    }
+
+    /**
+     * Does nothing: the file is closed once mapped, and the mapping stays until
+     * the reader is collected, so that frames handed out stay valid.
+     */
+    @Override
+    public void close() {
+    }
+
+    public int getFrameCount() {
+        return frameMapping.length;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the frame rate given in the file's header, or 0 if it has none.
+     */
+    public double getFrameRate() {
+        return frameRate;
+    }
+
+}
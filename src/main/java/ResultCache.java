@@ -0,0 +1,335 @@
+import org.opencv.core.Point;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * A persistent cache of the decode results of image files, so that a batch run
+ * over folders where most files have not changed only decodes the new and
+ * changed ones. Each file's result is stored with its size, modification time
+ * and a 64-bit hash of its contents. A file whose size and modification time
+ * are unchanged is taken from the cache without being read at all; otherwise
+ * it is hashed, and its result is reused if the contents are those of a cached
+ * file, e.g. one that was only touched, copied or renamed.
+ * <p>
+ * The cache holds at most a set number of files, evicting the least recently
+ * used. It is tagged with the version of the decoder that produced it, and a
+ * cache from another version is discarded on loading. It is loaded whole when
+ * opened and written back, atomically, when closed. A cache can be used from
+ * any number of threads at once.
+ */
+public class ResultCache implements AutoCloseable {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+    private static final int MAGIC = 0x51524331; // "QRC1"
+
+    /**
+     * Decodes a file on a cache miss.
+     */
+    @FunctionalInterface
+    public interface FileDecoder {
+        DetectionResult decode(File file) throws IOException;
+    }
+
+    /**
+     * A cached file: its size, modification time in nanoseconds and content
+     * hash when it was decoded, and the result without its module darkness and
+     * timings.
+     */
+    private record Entry(long size, long modified, long hash, DetectionResult result) {
+    }
+
+    private final Path file;
+    private final String version;
+    private final int maxEntries;
+    // Files by absolute path, least recently used first
+    private final LinkedHashMap<String, Entry> entries;
+    // The paths of the cached files with each content hash
+    private final Map<Long, Set<String>> paths = new HashMap<>();
+    private boolean dirty = false;
+    private long unchangedHits = 0;
+    private long contentHits = 0;
+    private long misses = 0;
+
+    /**
+     * Opens the cache in the specified file for results of the specified
+     * decoder version, holding at most the specified number of files. The cache
+     * starts empty if the file does not exist, is unreadable or was written for
+     * another version.
+     */
+    public ResultCache(Path file, String version, int maxEntries) {
+        this.file = file;
+        this.version = version;
+        this.maxEntries = maxEntries;
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if (size() <= ResultCache.this.maxEntries) {
+                    return false;
+                }
+                removePath(eldest.getValue().hash(), eldest.getKey());
+                return true;
+            }
+        };
+
+        try {
+            load();
+        } catch (NoSuchFileException e) {
+            // A first run
+        } catch (IOException e) {
+            System.out.println("Discarding unreadable result cache " + file + ": " + e.getMessage());
+            entries.clear();
+            paths.clear();
+        }
+    }
+
+    /**
+     * Returns the result for the specified file, from the cache if the file or
+     * its contents are cached, or else from the specified decoder, whose result
+     * is then cached. Only a decoder's exceptions are not cached.
+     */
+    public DetectionResult get(File file, FileDecoder decoder) throws IOException {
+        Path path = file.toPath().toAbsolutePath();
+        String key = path.toString();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        // The cheap check first: an unchanged size and modification time
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.size() == size && entry.modified() == modified) {
+                unchangedHits++;
+                // The hit made the file the most recently used, which must be
+                // saved for eviction to follow the use across runs
+                dirty = true;
+                return entry.result();
+            }
+        }
+
+        // Then the contents, which may be those of any cached file
+        long hash = hash(path);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry == null || entry.hash() != hash || entry.size() != size) {
+                Set<String> others = paths.get(hash);
+                entry = others != null ? entries.get(others.iterator().next()) : null;
+            }
+            if (entry != null && entry.hash() == hash && entry.size() == size) {
+                contentHits++;
+                put(key, new Entry(size, modified, hash, entry.result()));
+                return entry.result();
+            }
+        }
+
+        DetectionResult result = decoder.decode(file);
+        DetectionResult stored = new DetectionResult(result.getStatus(), result.getOutline(), result.getCorners(), null,
+                result.getDecodeResult(), 0, 0, 0);
+        synchronized (this) {
+            misses++;
+            put(key, new Entry(size, modified, hash, stored));
+        }
+        return result;
+    }
+
+    private void put(String key, Entry entry) {
+        Entry replaced = entries.put(key, entry);
+        if (replaced != null) {
+            removePath(replaced.hash(), key);
+        }
+        paths.computeIfAbsent(entry.hash(), hash -> new HashSet<>()).add(key);
+        dirty = true;
+    }
+
+    private void removePath(long hash, String key) {
+        Set<String> keys = paths.get(hash);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            paths.remove(hash);
+        }
+    }
+
+    /**
+     * Returns a 64-bit hash of the specified file's contents, made of its
+     * CRC32C and CRC32, which the JVM computes with CPU instructions.
+     */
+    private static long hash(Path path) throws IOException {
+        CRC32C crc32c = new CRC32C();
+        CRC32 crc32 = new CRC32();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                long length = Math.min(size - position, Integer.MAX_VALUE);
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                crc32c.update(buffer.duplicate());
+                crc32.update(buffer);
+                position += length;
+            }
+        }
+        return crc32c.getValue() << 32 | crc32.getValue();
+    }
+
+    /**
+     * Writes the cache back to its file if it has changed, by writing a
+     * temporary file next to it and moving that into place.
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(version);
+            out.writeInt(entries.size());
+            // Least recently used first, so that loading restores the order
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size());
+                out.writeLong(entry.modified());
+                out.writeLong(entry.hash());
+                writeResult(out, entry.result());
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a result cache");
+            }
+            if (!in.readUTF().equals(version)) {
+                // Results of another decoder version must not be reused
+                dirty = true;
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                Entry entry = new Entry(in.readLong(), in.readLong(), in.readLong(), readResult(in));
+                put(key, entry);
+            }
+        }
+        dirty = false;
+    }
+
+    private static void writeResult(DataOutputStream out, DetectionResult result) throws IOException {
+        out.writeByte(result.getStatus().ordinal());
+        writePoints(out, result.getOutline());
+        writePoints(out, result.getCorners());
+        DecodeResult decoded = result.getDecodeResult();
+        out.writeBoolean(decoded != null);
+        if (decoded != null) {
+            out.writeUTF(decoded.getText());
+            out.writeBoolean(decoded.getGrid() != null);
+            if (decoded.getGrid() != null) {
+                out.writeLong(QRUtil.pack(decoded.getGrid()));
+            }
+            out.writeInt(decoded.getFlippedModules());
+            out.writeDouble(decoded.getConfidence());
+        }
+    }
+
+    private static DetectionResult readResult(DataInputStream in) throws IOException {
+        int status = in.readByte();
+        if (status < 0 || status >= DetectionResult.Status.values().length) {
+            throw new IOException("Bad status " + status);
+        }
+        Point[] outline = readPoints(in);
+        Point[] corners = readPoints(in);
+        DecodeResult decoded = null;
+        if (in.readBoolean()) {
+            String text = in.readUTF();
+            boolean[][] grid = in.readBoolean() ? QRUtil.unpack(in.readLong()) : null;
+            decoded = new DecodeResult(text, grid, in.readInt(), in.readDouble());
+        }
+        return new DetectionResult(DetectionResult.Status.values()[status], outline, corners, null, decoded, 0, 0, 0);
+    }
+
+    private static void writePoints(DataOutputStream out, Point[] points) throws IOException {
+        out.writeShort(points == null ? -1 : points.length);
+        if (points != null) {
+            for (Point p : points) {
+                out.writeDouble(p.x);
+                out.writeDouble(p.y);
+            }
+        }
+    }
+
+    private static Point[] readPoints(DataInputStream in) throws IOException {
+        int length = in.readShort();
+        if (length < 0) {
+            return null;
+        }
+        Point[] points = new Point[length];
+        for (int i = 0; i < length; i++) {
+            points[i] = new Point(in.readDouble(), in.readDouble());
+        }
+        return points;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns how many files were found unchanged by their size and modification
+     * time.
+     */
+    public synchronized long getUnchangedHitCount() {
+        return unchangedHits;
+    }
+
+    /**
+     * Returns how many files had changed by their size or modification time but
+     * had cached contents.
+     */
+    public synchronized long getContentHitCount() {
+        return contentHits;
+    }
+
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Writes the cache back to its file, reporting rather than throwing a
+     * failure, since the results themselves are not lost.
+     */
+    @Override
+    public void close() {
+        try {
+            save();
+        } catch (IOException e) {
+            System.out.println("Could not save result cache " + file);
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,769 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * A durable, append-only history of scan results, kept as a directory of
+ * memory-mapped segment files. Appends only put the entry on a queue, so they
+ * never block the capture path; a writer thread copies queued entries into the
+ * current segment and syncs it to disk at most every SYNC_INTERVAL_MILLIS. An
+ * in-memory index maps each codeword to its first and latest sighting, so
+ * lookups such as "has this code been seen today?" take constant time.
+ * <p>
+ * Full segments are sealed and a new one is started. Sealed segments are
+ * compacted in the background: entries older than the retention period are
+ * dropped, except each code's first and latest sighting, which are kept for as
+ * long as the log exists.
+ * <p>
+ * Usage: {@code ScanLog [--dir=DIR] [--code=TEXT] [--bench=N]}
+ */
+public class ScanLog implements AutoCloseable {
+
+    public static final String DEFAULT_DIRECTORY = "scans";
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+    public static final long DEFAULT_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+    public static final int QUEUE_CAPACITY = 1 << 16;
+    public static final int MAX_BATCH = 4096;
+    public static final long SYNC_INTERVAL_MILLIS = 100;
+    public static final long COMPACT_INTERVAL_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // Sealed segments are only rewritten if this fraction of them can be dropped
+    public static final double MIN_COMPACT_GAIN = 0.25;
+
+    // Each entry is stored as its total length, a CRC32 of the rest of the
+    // entry, the timestamp, codeword and confidence, and the lengths of the
+    // source and text, followed by the UTF-8 source and text. A zero length
+    // marks the end of a segment.
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 2 + 2;
+    private static final int MAX_STRING_BYTES = 0xFFFF;
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.log");
+
+    /**
+     * A single scan: when and by which source the code was read, its codeword as
+     * packed by QRUtil.pack, its text and the confidence of the reading.
+     */
+    public record Entry(long timestamp, String source, long codeword, String text, double confidence) {
+    }
+
+    /**
+     * A segment file and its mapping. Only the current segment is writable.
+     */
+    private static class Segment {
+
+        final int id;
+        final Path path;
+        final MappedByteBuffer buffer;
+        int size;
+        long minTimestamp = Long.MAX_VALUE;
+
+        Segment(int id, Path path, MappedByteBuffer buffer) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+        }
+
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long retentionMillis;
+
+    // The segments and index are guarded by this
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private final CodewordIndex index = new CodewordIndex();
+    private Segment active;
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final AtomicLong appended = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Thread writer;
+    private final ScheduledExecutorService compactor;
+    private final Object compactLock = new Object();
+    // Held while appending and while closing, so that no entry is queued after
+    // the writer may have seen the log closed and the queue empty
+    private final Object closeLock = new Object();
+    private volatile boolean running = true;
+    private long synced = 0;
+
+    /**
+     * Opens the log in the specified directory, creating it if needed, with the
+     * default segment size and retention period.
+     */
+    public ScanLog(Path directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_RETENTION_MILLIS);
+    }
+
+    /**
+     * Opens the log in the specified directory, creating it if needed. Existing
+     * segments are read back into the index; an entry that was only partly
+     * written when the process died ends its segment.
+     */
+    public ScanLog(Path directory, int segmentSize, long retentionMillis) throws IOException {
+        if (segmentSize < HEADER_SIZE + 2 * MAX_STRING_BYTES) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.retentionMillis = retentionMillis;
+
+        Files.createDirectories(directory);
+        recover();
+
+        writer = new Thread(this::writeLoop, "scanlog-writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "scanlog-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactQuietly, COMPACT_INTERVAL_MILLIS, COMPACT_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path directory = Paths.get(DEFAULT_DIRECTORY);
+        String code = null;
+        int bench = 0;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--dir=")) {
+                directory = Paths.get(value);
+            } else if (arg.startsWith("--code=")) {
+                code = value;
+            } else if (arg.startsWith("--bench=")) {
+                bench = Integer.parseInt(value);
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + arg);
+            }
+        }
+
+        try (ScanLog log = new ScanLog(directory)) {
+            // Append random codes as fast as possible and report the sustained rate
+            if (bench > 0) {
+                Random rng = new Random(0);
+                long start = System.nanoTime();
+                for (int i = 0; i < bench; i++) {
+                    String text = Long.toString(rng.nextLong() & 0xFFFFFFFFL, 36);
+                    while (log.queue.remainingCapacity() == 0) {
+                        Thread.onSpinWait();
+                    }
+                    log.append(new Entry(System.currentTimeMillis(), "bench", QRUtil.codeword(text), text, 1));
+                }
+                log.flush();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("Appended %d entries in %.2f s (%.0f/s)%n", bench, seconds, bench / seconds);
+            }
+
+            if (code != null) {
+                long codeword = QRUtil.codeword(code);
+                System.out.println("First seen:  " + log.first(codeword));
+                System.out.println("Latest seen: " + log.latest(codeword));
+            }
+            System.out.println(log);
+        }
+    }
+
+    /**
+     * Queues the specified reading from the specified source, timestamped now.
+     * Returns false, without blocking, if the queue is full.
+     */
+    public boolean append(String source, DecodeResult result) {
+        return append(new Entry(System.currentTimeMillis(), source, QRUtil.codeword(result), result.getText(),
+                result.getConfidence()));
+    }
+
+    /**
+     * Queues the specified entry to be written. Returns false, without blocking,
+     * if the queue is full or the log is closed; the entry is then dropped.
+     */
+    public boolean append(Entry entry) {
+        synchronized (closeLock) {
+            if (running && queue.offer(entry)) {
+                appended.incrementAndGet();
+                return true;
+            }
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Waits until every entry appended so far has been written and synced.
+     */
+    public void flush() throws InterruptedException {
+        long target = appended.get();
+        synchronized (this) {
+            while (synced < target && writer.isAlive()) {
+                wait(SYNC_INTERVAL_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Returns when the specified codeword was last seen, or -1 if it never was.
+     * Entries still queued are not seen yet.
+     */
+    public synchronized long lastSeen(long codeword) {
+        return index.lastSeen(codeword);
+    }
+
+    /**
+     * Returns whether the specified codeword has been seen at or after the
+     * specified time.
+     */
+    public boolean seenSince(long codeword, long sinceMillis) {
+        return lastSeen(codeword) >= sinceMillis;
+    }
+
+    /**
+     * Returns the first sighting of the specified codeword, or null if it was
+     * never seen.
+     */
+    public synchronized Entry first(long codeword) {
+        long offset = index.first(codeword);
+        return offset >= 0 ? read(offset) : null;
+    }
+
+    /**
+     * Returns the latest sighting of the specified codeword, or null if it was
+     * never seen.
+     */
+    public synchronized Entry latest(long codeword) {
+        long offset = index.latest(codeword);
+        return offset >= 0 ? read(offset) : null;
+    }
+
+    /**
+     * Returns the number of distinct codewords in the log.
+     */
+    public synchronized int getCodewordCount() {
+        return index.size();
+    }
+
+    /**
+     * Returns the number of entries dropped because the queue was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        long bytes = 0;
+        for (Segment segment : segments.values()) {
+            bytes += segment.size;
+        }
+        return String.format("ScanLog{%s: %d segments, %d bytes, %d codewords, %d dropped}", directory,
+                segments.size(), bytes, index.size(), dropped.get());
+    }
+
+    /**
+     * Stops accepting entries, writes and syncs the queued ones and stops the
+     * background threads.
+     */
+    @Override
+    public void close() {
+        synchronized (closeLock) {
+            running = false;
+        }
+        try {
+            writer.join();
+            compactor.shutdownNow();
+            compactor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<Entry> batch = new ArrayList<>();
+        long[] offsets = new long[MAX_BATCH];
+        long lastSync = System.nanoTime();
+        long written = 0;
+        boolean dirty = false;
+
+        while (running || !queue.isEmpty()) {
+            try {
+                // Wait for entries, but no longer than the next sync is due
+                long waitMillis = dirty
+                        ? Math.max(0, SYNC_INTERVAL_MILLIS - (System.nanoTime() - lastSync) / 1_000_000)
+                        : SYNC_INTERVAL_MILLIS;
+                Entry entry = queue.poll(waitMillis, TimeUnit.MILLISECONDS);
+                if (entry != null) {
+                    batch.add(entry);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (int i = 0; i < batch.size(); i++) {
+                        offsets[i] = write(batch.get(i));
+                    }
+
+                    // Publish the batch to the index in one go
+                    synchronized (this) {
+                        for (int i = 0; i < batch.size(); i++) {
+                            Entry e = batch.get(i);
+                            index.put(e.codeword(), offsets[i], e.timestamp());
+                        }
+                    }
+                    written += batch.size();
+                    batch.clear();
+                    dirty = true;
+                }
+
+                if (dirty && System.nanoTime() - lastSync >= SYNC_INTERVAL_MILLIS * 1_000_000) {
+                    sync(written);
+                    lastSync = System.nanoTime();
+                    dirty = false;
+                }
+            } catch (InterruptedException e) {
+                // Only close stops the writer, once the queue is empty
+            } catch (IOException e) {
+                System.out.println("Error writing scan log!");
+                e.printStackTrace();
+                written += batch.size();
+                batch.clear();
+            }
+        }
+
+        sync(written);
+    }
+
+    private void sync(long written) {
+        active.buffer.force();
+        synchronized (this) {
+            synced = written;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Writes the specified entry to the current segment, starting a new one if
+     * it is full, and returns its offset.
+     */
+    private long write(Entry entry) throws IOException {
+        byte[] source = utf8(entry.source());
+        byte[] text = utf8(entry.text());
+        int length = HEADER_SIZE + source.length + text.length;
+        if (active.size + length > segmentSize) {
+            roll();
+        }
+
+        MappedByteBuffer buffer = active.buffer;
+        int position = active.size;
+        buffer.putLong(position + 8, entry.timestamp());
+        buffer.putLong(position + 16, entry.codeword());
+        buffer.putFloat(position + 24, (float) entry.confidence());
+        buffer.putShort(position + 28, (short) source.length);
+        buffer.putShort(position + 30, (short) text.length);
+        buffer.put(position + HEADER_SIZE, source);
+        buffer.put(position + HEADER_SIZE + source.length, text);
+        buffer.putInt(position + 4, checksum(buffer, position, length));
+
+        // Write the length last, so that a torn entry reads as the end of the segment
+        buffer.putInt(position, length);
+        active.size += length;
+        active.minTimestamp = Math.min(active.minTimestamp, entry.timestamp());
+        return offset(active.id, position);
+    }
+
+    /**
+     * Seals the current segment and starts the next one.
+     */
+    private void roll() throws IOException {
+        active.buffer.force();
+        Segment next = createSegment(active.id + 1);
+        synchronized (this) {
+            segments.put(next.id, next);
+            active = next;
+        }
+        compactor.execute(this::compactQuietly);
+    }
+
+    private Segment createSegment(int id) throws IOException {
+        Path path = directory.resolve(String.format("segment-%06d.log", id));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            return new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        }
+    }
+
+    /**
+     * Maps the existing segments, rebuilds the index from them and picks the
+     * segment to append to.
+     */
+    private void recover() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.forEach(paths::add);
+        }
+
+        boolean resumable = false;
+        for (Path path : paths) {
+            // Leftovers of an interrupted compaction
+            if (path.getFileName().toString().endsWith(".tmp")) {
+                Files.delete(path);
+                continue;
+            }
+            Matcher matcher = SEGMENT_NAME.matcher(path.getFileName().toString());
+            if (!matcher.matches()) {
+                continue;
+            }
+
+            int id = Integer.parseInt(matcher.group(1));
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                Segment segment = new Segment(id, path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+                segments.put(id, segment);
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            int position = 0;
+            while (true) {
+                int length = validLength(segment.buffer, position);
+                if (length == 0) {
+                    break;
+                }
+                long timestamp = segment.buffer.getLong(position + 8);
+                index.put(segment.buffer.getLong(position + 16), offset(segment.id, position), timestamp);
+                segment.minTimestamp = Math.min(segment.minTimestamp, timestamp);
+                position += length;
+            }
+            segment.size = position;
+
+            // Only a full-size segment that ends cleanly can take more entries
+            resumable = segment.buffer.capacity() == segmentSize
+                    && (position + 4 > segment.buffer.capacity() || segment.buffer.getInt(position) == 0);
+        }
+
+        if (!segments.isEmpty() && resumable) {
+            active = segments.lastEntry().getValue();
+        } else {
+            active = createSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1);
+            segments.put(active.id, active);
+        }
+    }
+
+    /**
+     * Returns the length of the entry at the specified position if it is
+     * complete and intact, or 0 at the end of the segment.
+     */
+    private static int validLength(ByteBuffer buffer, int position) {
+        if (position + HEADER_SIZE > buffer.capacity()) {
+            return 0;
+        }
+        int length = buffer.getInt(position);
+        if (length < HEADER_SIZE || position + length > buffer.capacity()
+                || buffer.getInt(position + 4) != checksum(buffer, position, length)) {
+            return 0;
+        }
+        return length;
+    }
+
+    private static int checksum(ByteBuffer buffer, int position, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(position + 8, length - 8));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Reads the entry at the specified offset. Must hold the lock.
+     */
+    private Entry read(long offset) {
+        Segment segment = segments.get(segmentId(offset));
+        if (segment == null) {
+            return null;
+        }
+        ByteBuffer buffer = segment.buffer;
+        int position = position(offset);
+        byte[] source = new byte[Short.toUnsignedInt(buffer.getShort(position + 28))];
+        byte[] text = new byte[Short.toUnsignedInt(buffer.getShort(position + 30))];
+        buffer.get(position + HEADER_SIZE, source);
+        buffer.get(position + HEADER_SIZE + source.length, text);
+        return new Entry(buffer.getLong(position + 8), new String(source, StandardCharsets.UTF_8),
+                buffer.getLong(position + 16), new String(text, StandardCharsets.UTF_8),
+                buffer.getFloat(position + 24));
+    }
+
+    private void compactQuietly() {
+        try {
+            compact();
+        } catch (IOException e) {
+            System.out.println("Error compacting scan log!");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Compacts every sealed segment that holds expired entries, dropping those
+     * that are not a code's first or latest sighting. A segment is only
+     * rewritten if that frees at least MIN_COMPACT_GAIN of it, and deleted if
+     * nothing is left.
+     */
+    public void compact() throws IOException {
+        synchronized (compactLock) {
+            List<Segment> sealed;
+            synchronized (this) {
+                sealed = new ArrayList<>(segments.headMap(active.id).values());
+            }
+
+            long expiry = System.currentTimeMillis() - retentionMillis;
+            for (Segment segment : sealed) {
+                if (segment.minTimestamp < expiry) {
+                    compact(segment, expiry);
+                }
+            }
+        }
+    }
+
+    private void compact(Segment segment, long expiry) throws IOException {
+        // Pick the entries to keep. Index entries only ever move from sealed
+        // segments to the current one, so an entry found unreferenced here stays
+        // unreferenced.
+        ByteBuffer buffer = segment.buffer;
+        IntList kept = new IntList();
+        int keptBytes = 0;
+        int position = 0;
+        while (position < segment.size) {
+            int length = buffer.getInt(position);
+            long timestamp = buffer.getLong(position + 8);
+            if (timestamp >= expiry || isReferenced(buffer.getLong(position + 16), offset(segment.id, position))) {
+                kept.add(position);
+                keptBytes += length;
+            }
+            position += length;
+        }
+        if (keptBytes > segment.size * (1 - MIN_COMPACT_GAIN)) {
+            return;
+        }
+
+        if (kept.size() == 0) {
+            synchronized (this) {
+                segments.remove(segment.id);
+            }
+            Files.delete(segment.path);
+            return;
+        }
+
+        // Copy the kept entries to a new file and note where each one moved
+        Path tmp = segment.path.resolveSibling(segment.path.getFileName() + ".tmp");
+        int[] newPositions = new int[kept.size()];
+        Segment compacted;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            int newPosition = 0;
+            for (int i = 0; i < kept.size(); i++) {
+                int length = buffer.getInt(kept.get(i));
+                channel.write(buffer.slice(kept.get(i), length));
+                newPositions[i] = newPosition;
+                newPosition += length;
+            }
+            channel.force(true);
+            compacted = new Segment(segment.id, segment.path,
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, newPosition));
+            compacted.size = newPosition;
+        }
+        for (int i = 0; i < kept.size(); i++) {
+            compacted.minTimestamp = Math.min(compacted.minTimestamp, compacted.buffer.getLong(newPositions[i] + 8));
+        }
+
+        // Swap the files and repoint the index in one step
+        int[] oldPositions = kept.toArray();
+        synchronized (this) {
+            Files.move(tmp, segment.path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            segments.put(segment.id, compacted);
+            index.remap(segment.id, oldPositions, newPositions);
+        }
+    }
+
+    private synchronized boolean isReferenced(long codeword, long offset) {
+        return index.first(codeword) == offset || index.latest(codeword) == offset;
+    }
+
+    private static byte[] utf8(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return bytes.length > MAX_STRING_BYTES ? Arrays.copyOf(bytes, MAX_STRING_BYTES) : bytes;
+    }
+
+    private static long offset(int segmentId, int position) {
+        return ((long) segmentId << 32) | position;
+    }
+
+    private static int segmentId(long offset) {
+        return (int) (offset >>> 32);
+    }
+
+    private static int position(long offset) {
+        return (int) offset;
+    }
+
+    /**
+     * An open-addressing hash map from codeword to the offsets of its first and
+     * latest sighting and the time of the latest, in parallel primitive arrays.
+     * Codewords only use 49 bits, so -1 marks an empty slot.
+     */
+    private static class CodewordIndex {
+
+        private static final long EMPTY = -1;
+
+        private long[] keys;
+        private long[] first;
+        private long[] latest;
+        private long[] lastSeen;
+        private int size = 0;
+
+        CodewordIndex() {
+            allocate(1024);
+        }
+
+        int size() {
+            return size;
+        }
+
+        long first(long codeword) {
+            int slot = slot(codeword);
+            return keys[slot] == codeword ? first[slot] : -1;
+        }
+
+        long latest(long codeword) {
+            int slot = slot(codeword);
+            return keys[slot] == codeword ? latest[slot] : -1;
+        }
+
+        long lastSeen(long codeword) {
+            int slot = slot(codeword);
+            return keys[slot] == codeword ? lastSeen[slot] : -1;
+        }
+
+        void put(long codeword, long offset, long timestamp) {
+            // Keep the table at most half full so that probes stay short
+            if ((size + 1) * 2 > keys.length) {
+                grow();
+            }
+            int slot = slot(codeword);
+            if (keys[slot] == EMPTY) {
+                keys[slot] = codeword;
+                first[slot] = offset;
+                size++;
+            }
+            latest[slot] = offset;
+            lastSeen[slot] = timestamp;
+        }
+
+        /**
+         * Moves every offset into the specified segment from the old positions to
+         * the new ones. The old positions are sorted.
+         */
+        void remap(int segmentId, int[] oldPositions, int[] newPositions) {
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] != EMPTY) {
+                    first[slot] = remap(first[slot], segmentId, oldPositions, newPositions);
+                    latest[slot] = remap(latest[slot], segmentId, oldPositions, newPositions);
+                }
+            }
+        }
+
+        private static long remap(long offset, int segmentId, int[] oldPositions, int[] newPositions) {
+            if (segmentId(offset) != segmentId) {
+                return offset;
+            }
+            int i = Arrays.binarySearch(oldPositions, position(offset));
+            return i >= 0 ? offset(segmentId, newPositions[i]) : offset;
+        }
+
+        private int slot(long codeword) {
+            int mask = keys.length - 1;
+            int slot = (int) mix(codeword) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != codeword) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldFirst = first;
+            long[] oldLatest = latest;
+            long[] oldLastSeen = lastSeen;
+            allocate(oldKeys.length * 2);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = slot(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    first[slot] = oldFirst[i];
+                    latest[slot] = oldLatest[i];
+                    lastSeen[slot] = oldLastSeen[i];
+                }
+            }
+        }
+
+        private void allocate(int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            first = new long[capacity];
+            latest = new long[capacity];
+            lastSeen = new long[capacity];
+        }
+
+        // Spreads the codeword bits over the whole hash (the MurmurHash3 finalizer)
+        private static long mix(long x) {
+            x ^= x >>> 33;
+            x *= 0xff51afd7ed558ccdL;
+            x ^= x >>> 33;
+            x *= 0xc4ceb9fe1a85ec53L;
+            x ^= x >>> 33;
+            return x;
+        }
+
+    }
+
+    /**
+     * A growable list of ints, to avoid boxing every kept position.
+     */
+    private static class IntList {
+
+        private int[] values = new int[256];
+        private int size = 0;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int get(int i) {
+            return values[i];
+        }
+
+        int size() {
+            return size;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+    }
+
+}
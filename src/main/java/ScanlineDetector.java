@@ -0,0 +1,457 @@
+import org.opencv.core.Point;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds codes by scanning the thresholded image for their border, without edge
+ * detection. Every few rows and columns are split into runs of dark and light
+ * pixels, and each line that crosses a code shows a black run followed by a
+ * white run in the 15:10 proportion of the border, with the matching pair on
+ * the far side one code width away. Crossings that overlap in both directions
+ * are grouped, and the outline is fitted to their end points and confirmed
+ * with QRDecoder.borderOutline.
+ */
+public class ScanlineDetector implements Detector {
+
+    public static final int DEFAULT_STEP = 3; // Pixels between scanned rows and columns
+    public static final int LINES_PER_IMAGE = 160; // Along the shorter side, for large images
+    public static final int MIN_BORDER_RUN = 2;
+    public static final double BAND_TOLERANCE = 0.4;
+    public static final double WIDTH_TOLERANCE = 0.5;
+    public static final double MAX_BORDER_RATIO = 1.5; // Between the near and far border runs
+    public static final double NEIGHBOR_TOLERANCE = 0.3;
+    public static final int MIN_CROSSINGS = 3; // Per direction
+
+    private final int step;
+
+    public ScanlineDetector() {
+        this(DEFAULT_STEP);
+    }
+
+    public ScanlineDetector(int step) {
+        this.step = step;
+    }
+
+    /**
+     * A stretch of a scanned row or column from the outer edge of a code's border
+     * to the outer edge on the far side.
+     */
+    private record Crossing(boolean horizontal, int position, int from, int to) {
+
+        Point start() {
+            return horizontal ? new Point(from, position) : new Point(position, from);
+        }
+
+        Point end() {
+            return horizontal ? new Point(to, position) : new Point(position, to);
+        }
+
+    }
+
+    @Override
+    public Point[] locate(Mat gray) {
+        // Copy the image out in one go for scanning
+        if (!gray.isContinuous()) {
+            gray = gray.clone();
+        }
+        int width = gray.cols();
+        int height = gray.rows();
+        byte[] pixels = new byte[width * height];
+        gray.get(0, 0, pixels);
+
+        // Scan proportionally fewer lines of large images
+        int lineStep = Math.max(step, Math.min(width, height) / LINES_PER_IMAGE);
+        int threshold = otsuThreshold(pixels, width, height, lineStep);
+        Point[] outline = locate(gray, pixels, lineStep, threshold);
+        if (outline.length > 0) {
+            return outline;
+        }
+
+        // A background darker than the code's white can make Otsu's threshold
+        // split the white from everything else, so also try one that separates
+        // the black border from the background
+        return locate(gray, pixels, lineStep, threshold / 2);
+    }
+
+    private Point[] locate(Mat gray, byte[] pixels, int lineStep, int threshold) {
+        int width = gray.cols();
+        int height = gray.rows();
+
+        // Scan every lineStep-th row and column for border crossings
+        List<Crossing> crossings = new ArrayList<>();
+        int[] runs = new int[Math.max(width, height) + 1];
+        for (int y = lineStep / 2; y < height; y += lineStep) {
+            scan(pixels, y * width, 1, width, threshold, runs, true, y, crossings);
+        }
+        for (int x = lineStep / 2; x < width; x += lineStep) {
+            scan(pixels, x, width, height, threshold, runs, false, x, crossings);
+        }
+
+        // Confirm candidates in 2D: crossings of the same code overlap their
+        // neighbors in the same direction and intersect those in the other
+        int[] parents = group(crossings, lineStep);
+
+        List<List<Crossing>> groups = new ArrayList<>(crossings.size());
+        for (int i = 0; i < crossings.size(); i++) {
+            groups.add(parents[i] == i ? new ArrayList<>() : null);
+        }
+        for (int i = 0; i < crossings.size(); i++) {
+            groups.get(parents[i]).add(crossings.get(i));
+        }
+
+        Point[] largestOutline = new Point[0];
+        double largestArea = 0;
+        for (List<Crossing> members : groups) {
+            if (members == null) {
+                continue;
+            }
+
+            List<Point> ends = new ArrayList<>();
+            int horizontal = 0;
+            for (Crossing crossing : members) {
+                ends.add(crossing.start());
+                ends.add(crossing.end());
+                horizontal += crossing.horizontal() ? 1 : 0;
+            }
+            if (horizontal < MIN_CROSSINGS || ends.size() / 2 - horizontal < MIN_CROSSINGS) {
+                continue;
+            }
+
+            // Clutter touching the code can pull the fitted sides out of place, in
+            // which case the white band is traced in the thresholded region instead
+            Point[] outline = QRDecoder.borderOutline(gray, fitQuad(ends));
+            if (outline == null) {
+                outline = traceOutline(gray, threshold, ends);
+            }
+            if (outline != null) {
+                double area = Imgproc.contourArea(new MatOfPoint2f(outline));
+                if (area > largestArea) {
+                    largestOutline = outline;
+                    largestArea = area;
+                }
+            }
+        }
+
+        return largestOutline;
+    }
+
+    /**
+     * Splits one scanned line into runs and adds a crossing for each black run
+     * that starts a border and the black run one code width away that ends one.
+     * Pixels at or below the threshold are dark. The runs array is scratch space
+     * at least one longer than the line.
+     */
+    private static void scan(byte[] pixels, int offset, int stride, int length, int threshold, int[] runs,
+                             boolean horizontal, int position, List<Crossing> crossings) {
+        // Run boundaries: runs[i] is the first pixel of run i, and the runs
+        // alternate between dark and light
+        int count = 0;
+        boolean firstDark = (pixels[offset] & 0xff) <= threshold;
+        boolean dark = firstDark;
+        runs[count++] = 0;
+        for (int i = 1; i < length; i++) {
+            boolean pixelDark = (pixels[offset + i * stride] & 0xff) <= threshold;
+            if (pixelDark != dark) {
+                runs[count++] = i;
+                dark = pixelDark;
+            }
+        }
+        runs[count] = length;
+
+        // Dark runs preceded by light, followed by the white band, then data
+        int first = firstDark ? 2 : 1;
+        for (int i = first; i < count - 1; i += 2) {
+            int black = runs[i + 1] - runs[i];
+            if (black < MIN_BORDER_RUN || !isBorder(black, runs[i + 2] - runs[i + 1])) {
+                continue;
+            }
+
+            // Mirrored run on the far side closest to one code width away
+            int bestEnd = -1;
+            double bestError = WIDTH_TOLERANCE;
+            for (int j = i + 2; j < count - 1; j += 2) {
+                int farBlack = runs[j + 1] - runs[j];
+                if (farBlack * MAX_BORDER_RATIO < black || farBlack > black * MAX_BORDER_RATIO
+                        || !isBorder(farBlack, runs[j] - runs[j - 1])) {
+                    continue;
+                }
+                double unit = (black + farBlack) / (2.0 * QRUtil.BLACK_BORDER);
+                double expected = QRUtil.IMAGE_SIZE * unit;
+                double error = Math.abs(runs[j + 1] - runs[i] - expected) / expected;
+                if (error < bestError) {
+                    bestEnd = runs[j + 1] - 1;
+                    bestError = error;
+                }
+            }
+            if (bestEnd >= 0) {
+                crossings.add(new Crossing(horizontal, position, runs[i], bestEnd));
+            }
+        }
+    }
+
+    /**
+     * Returns the threshold that best separates the pixels of every lineStep-th
+     * row into dark and light, by Otsu's method.
+     */
+    private static int otsuThreshold(byte[] pixels, int width, int height, int lineStep) {
+        int[] histogram = new int[256];
+        long total = 0;
+        for (int y = lineStep / 2; y < height; y += lineStep) {
+            for (int i = y * width; i < (y + 1) * width; i++) {
+                histogram[pixels[i] & 0xff]++;
+            }
+            total += width;
+        }
+
+        // Maximize the between-class variance over every split
+        double sum = 0;
+        for (int i = 0; i < 256; i++) {
+            sum += (double) i * histogram[i];
+        }
+        double darkSum = 0;
+        long darkCount = 0;
+        double bestVariance = -1;
+        int threshold = 0;
+        for (int t = 0; t < 256; t++) {
+            darkCount += histogram[t];
+            if (darkCount == 0) {
+                continue;
+            }
+            long lightCount = total - darkCount;
+            if (lightCount == 0) {
+                break;
+            }
+            darkSum += (double) t * histogram[t];
+            double difference = darkSum / darkCount - (sum - darkSum) / lightCount;
+            double variance = (double) darkCount * lightCount * difference * difference;
+            if (variance > bestVariance) {
+                bestVariance = variance;
+                threshold = t;
+            }
+        }
+        return threshold;
+    }
+
+    /**
+     * Returns whether a black run followed by a white run could be a code's
+     * border: either the white band alone, or the band followed by whole white
+     * modules.
+     */
+    private static boolean isBorder(int black, int white) {
+        double units = white * (double) QRUtil.BLACK_BORDER / black;
+        double band = QRUtil.WHITE_BORDER;
+        if (Math.abs(units - band) <= band * BAND_TOLERANCE) {
+            return true;
+        }
+        return units >= (band + QRUtil.SQUARE_SIZE) * (1 - BAND_TOLERANCE)
+                && units <= (band + 7 * QRUtil.SQUARE_SIZE) * (1 + BAND_TOLERANCE);
+    }
+
+    /**
+     * Groups crossings that belong to the same code with a union-find over their
+     * indices. Returns the parent array, in which each group's root is its own
+     * parent.
+     */
+    private static int[] group(List<Crossing> crossings, int lineStep) {
+        int[] parents = new int[crossings.size()];
+        Arrays.setAll(parents, i -> i);
+
+        // Bucket the crossings by the line they were found on, so that each is
+        // only compared with those on the next lines in its direction and those
+        // on the lines it spans in the other direction
+        int lines = 0;
+        for (Crossing crossing : crossings) {
+            lines = Math.max(lines, crossing.position() / lineStep + 1);
+        }
+        List<List<Integer>> rows = new ArrayList<>();
+        List<List<Integer>> columns = new ArrayList<>();
+        for (int line = 0; line < lines; line++) {
+            rows.add(new ArrayList<>());
+            columns.add(new ArrayList<>());
+        }
+        for (int i = 0; i < crossings.size(); i++) {
+            Crossing crossing = crossings.get(i);
+            (crossing.horizontal() ? rows : columns).get(crossing.position() / lineStep).add(i);
+        }
+
+        for (int i = 0; i < crossings.size(); i++) {
+            Crossing a = crossings.get(i);
+            int line = a.position() / lineStep;
+            // Neighbors in the same direction are at most two lines further on
+            List<List<Integer>> same = a.horizontal() ? rows : columns;
+            for (int k = line; k <= Math.min(line + 2, lines - 1); k++) {
+                for (int j : same.get(k)) {
+                    if ((k > line || j > i) && joined(a, crossings.get(j), lineStep)) {
+                        parents[find(parents, i)] = find(parents, j);
+                    }
+                }
+            }
+            // Intersecting crossings are on the columns a row spans
+            if (a.horizontal()) {
+                for (int k = a.from() / lineStep; k <= Math.min(a.to() / lineStep, lines - 1); k++) {
+                    for (int j : columns.get(k)) {
+                        if (joined(a, crossings.get(j), lineStep)) {
+                            parents[find(parents, i)] = find(parents, j);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < parents.length; i++) {
+            parents[i] = find(parents, i);
+        }
+        return parents;
+    }
+
+    /**
+     * Returns whether the specified crossings belong to the same code.
+     */
+    private static boolean joined(Crossing a, Crossing b, int lineStep) {
+        int shorter = Math.min(a.to() - a.from(), b.to() - b.from());
+        int longer = Math.max(a.to() - a.from(), b.to() - b.from());
+        if (a.horizontal() == b.horizontal()) {
+            // Neighboring lines of about the same length that mostly overlap
+            int overlap = Math.min(a.to(), b.to()) - Math.max(a.from(), b.from());
+            return Math.abs(a.position() - b.position()) <= 2 * lineStep
+                    && overlap >= shorter * (1 - NEIGHBOR_TOLERANCE)
+                    && shorter >= longer * (1 - NEIGHBOR_TOLERANCE);
+        }
+        // Lines in opposite directions that intersect, with lengths that
+        // perspective could explain
+        return b.position() >= a.from() && b.position() <= a.to()
+                && a.position() >= b.from() && a.position() <= b.to()
+                && shorter >= longer * (1 - WIDTH_TOLERANCE);
+    }
+
+    private static int find(int[] parents, int i) {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    /**
+     * Returns the outline of the largest code whose border is traced by a
+     * contour of the thresholded image around the specified end points, or null
+     * if there is none. The white band and the light modules touching it form
+     * one region, whose contour is the inner edge of the black border.
+     */
+    private static Point[] traceOutline(Mat gray, int threshold, List<Point> ends) {
+        // The region around the end points, with a margin for the border
+        Rect bounds = Imgproc.boundingRect(new MatOfPoint(ends.toArray(new Point[0])));
+        int margin = Math.max(bounds.width, bounds.height) / 10;
+        int x = Math.max(0, bounds.x - margin);
+        int y = Math.max(0, bounds.y - margin);
+        Rect region = new Rect(x, y, Math.min(gray.cols(), bounds.x + bounds.width + margin) - x,
+                Math.min(gray.rows(), bounds.y + bounds.height + margin) - y);
+        Mat binary = new Mat();
+        Imgproc.threshold(gray.submat(region), binary, threshold, 255, Imgproc.THRESH_BINARY);
+
+        List<MatOfPoint> contours = new ArrayList<>();
+        Imgproc.findContours(binary, contours, new Mat(), Imgproc.RETR_LIST,
+                Imgproc.CHAIN_APPROX_SIMPLE, new Point(x, y));
+
+        Point[] largestOutline = null;
+        double largestArea = 0;
+        for (MatOfPoint contour : contours) {
+            // Only contours spanning most of the crossings can be the code
+            Rect contourBounds = Imgproc.boundingRect(contour);
+            if (contourBounds.width < bounds.width / 2 || contourBounds.height < bounds.height / 2) {
+                continue;
+            }
+
+            MatOfPoint2f contour2f = new MatOfPoint2f(contour.toArray());
+            MatOfPoint2f approxPolygon = new MatOfPoint2f();
+            Imgproc.approxPolyDP(contour2f, approxPolygon, Imgproc.arcLength(contour2f, true) * 0.04, true);
+            if (approxPolygon.total() != 4) {
+                continue;
+            }
+
+            Point[] outline = QRDecoder.borderOutline(gray, approxPolygon.toArray());
+            if (outline != null) {
+                double area = Imgproc.contourArea(new MatOfPoint2f(outline));
+                if (area > largestArea) {
+                    largestOutline = outline;
+                    largestArea = area;
+                }
+            }
+        }
+        return largestOutline;
+    }
+
+    /**
+     * Fits a quadrilateral to the end points of a group of crossings: the convex
+     * hull is reduced to four vertices, or to the minimum-area rectangle if that
+     * fails, and each side is then refitted as a line through the end points
+     * near it so that perspective is followed.
+     */
+    private static Point[] fitQuad(List<Point> ends) {
+        MatOfPoint2f points = new MatOfPoint2f(ends.toArray(new Point[0]));
+
+        MatOfInt hullIndices = new MatOfInt();
+        Imgproc.convexHull(new MatOfPoint(ends.toArray(new Point[0])), hullIndices);
+        int[] indices = hullIndices.toArray();
+        Point[] hull = new Point[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            hull[i] = ends.get(indices[i]);
+        }
+        MatOfPoint2f hull2f = new MatOfPoint2f(hull);
+        MatOfPoint2f approx = new MatOfPoint2f();
+        Imgproc.approxPolyDP(hull2f, approx, Imgproc.arcLength(hull2f, true) * 0.04, true);
+
+        Point[] quad;
+        if (approx.total() == 4) {
+            quad = approx.toArray();
+        } else {
+            quad = new Point[4];
+            Imgproc.minAreaRect(points).points(quad);
+        }
+
+        // Refit each side through the end points near it
+        double[][] lines = new double[4][];
+        for (int side = 0; side < 4; side++) {
+            Point a = quad[side];
+            Point b = quad[(side + 1) % 4];
+            double length = Math.hypot(b.x - a.x, b.y - a.y);
+            double tolerance = Math.max(3, 0.05 * length);
+            List<Point> near = new ArrayList<>();
+            for (Point p : ends) {
+                double distance = Math.abs((b.x - a.x) * (a.y - p.y) - (a.x - p.x) * (b.y - a.y)) / length;
+                if (distance <= tolerance) {
+                    near.add(p);
+                }
+            }
+            if (near.size() >= 2) {
+                Mat line = new Mat();
+                Imgproc.fitLine(new MatOfPoint2f(near.toArray(new Point[0])), line, Imgproc.DIST_HUBER, 0, 0.01, 0.01);
+                lines[side] = new double[] { line.get(0, 0)[0], line.get(1, 0)[0], line.get(2, 0)[0],
+                        line.get(3, 0)[0] };
+            } else {
+                lines[side] = new double[] { (b.x - a.x) / length, (b.y - a.y) / length, a.x, a.y };
+            }
+        }
+
+        // Corners where adjacent sides meet, keeping the original vertex if they
+        // are parallel
+        Point[] refined = new Point[4];
+        for (int side = 0; side < 4; side++) {
+            double[] l1 = lines[(side + 3) % 4];
+            double[] l2 = lines[side];
+            double cross = l1[0] * l2[1] - l1[1] * l2[0];
+            if (Math.abs(cross) < 1e-6) {
+                refined[side] = quad[side];
+            } else {
+                double t = ((l2[2] - l1[2]) * l2[1] - (l2[3] - l1[3]) * l2[0]) / cross;
+                refined[side] = new Point(l1[2] + t * l1[0], l1[3] + t * l1[1]);
+            }
+        }
+        return refined;
+    }
+
+}
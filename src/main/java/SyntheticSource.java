@@ -0,0 +1,70 @@
+import org.opencv.core.Mat;
+
+import java.util.Random;
+
+/**
+ * A frame source that stands in for a camera by generating QRBenchmark samples
+ * at a fixed frame rate. Each code stays in view for several frames, so that
+ * it can be read over several frames like a real one. The same seed always
+ * produces the same frames.
+ */
+public class SyntheticSource implements FrameSource {
+
+    public static final int DEFAULT_FRAMES = 300;
+    public static final int DEFAULT_FPS = 30;
+    public static final int FRAMES_PER_CODE = 15;
+
+    private final String name;
+    private final long seed;
+    private final int frames;
+    private final long frameNanos;
+
+    private int index = 0;
+    private long nextFrameTime;
+    private QRBenchmark.Sample sample;
+
+    public SyntheticSource(String name, long seed, int frames, int fps) {
+        this.name = name;
+        this.seed = seed;
+        this.frames = frames;
+        this.frameNanos = 1_000_000_000L / fps;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Mat grab() {
+        if (index >= frames) {
+            return null;
+        }
+
+        // Keep to the frame rate, as a camera would
+        long now = System.nanoTime();
+        if (index == 0) {
+            nextFrameTime = now;
+        } else if (nextFrameTime > now) {
+            try {
+                Thread.sleep((nextFrameTime - now) / 1_000_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        nextFrameTime += frameNanos;
+
+        if (index % FRAMES_PER_CODE == 0) {
+            Random rng = new Random(seed * 31 + index / FRAMES_PER_CODE);
+            sample = QRBenchmark.generateSample(name, QRBenchmark.Distortion.NONE, 0, rng);
+        }
+        index++;
+        return QRDecoder.toMat(sample.frame());
+    }
+
+    @Override
+    public void close() {
+    }
+
+}
@@ -0,0 +1,254 @@
+import org.opencv.core.Point;
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Splits large frames into overlapping tiles and runs another detector on
+ * every tile at once on a fork-join pool, so that detection on 4K and larger
+ * frames uses every core instead of one.
+ * <p>
+ * Tiles overlap by the size of the largest code that should be found at full
+ * resolution, so any such code lies wholly inside at least one tile, however
+ * it straddles the seams. Larger codes are found by a pass over a copy of the
+ * frame scaled down to VGA size, which runs alongside the tiles. A code
+ * found more than once, by neighboring tiles or by both passes, is reported
+ * once, preferring the full-resolution outline.
+ */
+public class TiledDetector implements Detector {
+
+    public static final int DEFAULT_TILE_SIZE = 1024;
+    public static final int DEFAULT_OVERLAP = 256;
+    public static final int SCALED_SIZE = 640; // Longer side of the scaled-down frame
+    public static final double SAME_CODE_AREA_RATIO = 0.8;
+
+    private final Detector detector;
+    private final int tileSize;
+    private final int overlap;
+    private final ForkJoinPool pool;
+
+    public TiledDetector(Detector detector) {
+        this(detector, DEFAULT_TILE_SIZE, DEFAULT_OVERLAP, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a detector that runs the specified detector on tiles of the given
+     * size, overlapping by the given number of pixels, on the given pool.
+     */
+    public TiledDetector(Detector detector, int tileSize, int overlap, ForkJoinPool pool) {
+        if (overlap >= tileSize) {
+            throw new IllegalArgumentException("Tile overlap must be smaller than the tile size");
+        }
+        this.detector = detector;
+        this.tileSize = tileSize;
+        this.overlap = overlap;
+        this.pool = pool;
+    }
+
+    /**
+     * An outline found by one of the passes, in frame coordinates.
+     */
+    private record Candidate(Point[] outline, double area, boolean fullResolution) {
+    }
+
+    @Override
+    public Point[] locate(Mat gray) {
+        return locate(gray, null, 0);
+    }
+
+    /**
+     * Finds the code as above and, in the same pass, adds to the specified list
+     * up to the specified number of the candidate regions that the detector
+     * reports in the tiles and the scaled-down frame, in frame coordinates,
+     * largest first and leaving out those within a larger one.
+     */
+    @Override
+    public Point[] locate(Mat gray, List<Rect> candidates, int maxCandidates) {
+        // Frames that fit in a tile are not worth splitting
+        if (gray.cols() <= tileSize && gray.rows() <= tileSize) {
+            return detector.locate(gray, candidates, maxCandidates);
+        }
+
+        // Each pass reports its regions in a list of its own
+        List<Callable<Candidate>> tasks = new ArrayList<>();
+        List<List<Rect>> passRegions = new ArrayList<>();
+        for (Rect tile : tiles(gray.cols(), gray.rows())) {
+            List<Rect> regions = candidates != null ? new ArrayList<>() : null;
+            passRegions.add(regions);
+            tasks.add(() -> {
+                Point[] outline = detector.locate(gray.submat(tile), regions, maxCandidates);
+                mapRegions(regions, tile.x, tile.y, 1);
+                return candidate(outline, tile.x, tile.y, 1, true);
+            });
+        }
+        List<Rect> scaledRegions = candidates != null ? new ArrayList<>() : null;
+        passRegions.add(scaledRegions);
+        tasks.add(() -> {
+            // Shrink the frame to find codes bigger than the overlap
+            double scale = (double) SCALED_SIZE / Math.max(gray.cols(), gray.rows());
+            Mat small = new Mat();
+            Imgproc.resize(gray, small, new Size(), scale, scale, Imgproc.INTER_AREA);
+            Point[] outline = detector.locate(small, scaledRegions, maxCandidates);
+            small.release();
+            mapRegions(scaledRegions, 0, 0, 1 / scale);
+            return candidate(outline, 0, 0, 1 / scale, false);
+        });
+
+        List<Candidate> found = new ArrayList<>();
+        try {
+            for (Future<Candidate> future : pool.invokeAll(tasks)) {
+                Candidate candidate = future.get();
+                if (candidate != null) {
+                    found.add(candidate);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Point[0];
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+
+        if (candidates != null) {
+            addOutermost(candidates, passRegions, maxCandidates);
+        }
+        return merge(found);
+    }
+
+    /**
+     * Returns the tiles covering a frame of the specified size. Tiles are spaced
+     * tileSize - overlap apart, and the last tile in each row and column is
+     * moved back to end at the frame's edge.
+     */
+    public List<Rect> tiles(int width, int height) {
+        List<Rect> tiles = new ArrayList<>();
+        int tileWidth = Math.min(tileSize, width);
+        int tileHeight = Math.min(tileSize, height);
+        for (int y : offsets(height, tileHeight)) {
+            for (int x : offsets(width, tileWidth)) {
+                tiles.add(new Rect(x, y, tileWidth, tileHeight));
+            }
+        }
+        return tiles;
+    }
+
+    private List<Integer> offsets(int length, int tileLength) {
+        List<Integer> offsets = new ArrayList<>();
+        int stride = tileSize - overlap;
+        for (int offset = 0; ; offset += stride) {
+            if (offset + tileLength >= length) {
+                offsets.add(length - tileLength);
+                return offsets;
+            }
+            offsets.add(offset);
+        }
+    }
+
+    /**
+     * Maps the specified regions, if any, from a pass's image into the frame.
+     */
+    private static void mapRegions(List<Rect> regions, int x, int y, double scale) {
+        if (regions == null) {
+            return;
+        }
+        for (Rect region : regions) {
+            int x0 = (int) Math.floor(region.x * scale) + x;
+            int y0 = (int) Math.floor(region.y * scale) + y;
+            region.width = (int) Math.ceil((region.x + region.width) * scale) + x - x0;
+            region.height = (int) Math.ceil((region.y + region.height) * scale) + y - y0;
+            region.x = x0;
+            region.y = y0;
+        }
+    }
+
+    /**
+     * Adds up to the specified number of the passes' regions to the candidates,
+     * largest first, skipping those within one already added: a code near a seam
+     * is reported whole by one tile and cut off by its neighbor.
+     */
+    private static void addOutermost(List<Rect> candidates, List<List<Rect>> passRegions, int max) {
+        List<Rect> regions = new ArrayList<>();
+        for (List<Rect> pass : passRegions) {
+            regions.addAll(pass);
+        }
+        regions.sort((a, b) -> Double.compare(b.area(), a.area()));
+        for (Rect region : regions) {
+            if (candidates.size() >= max) {
+                return;
+            }
+            boolean covered = false;
+            for (Rect candidate : candidates) {
+                if (region.x >= candidate.x && region.y >= candidate.y
+                        && region.x + region.width <= candidate.x + candidate.width
+                        && region.y + region.height <= candidate.y + candidate.height) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                candidates.add(region);
+            }
+        }
+    }
+
+    private static Candidate candidate(Point[] outline, int x, int y, double scale, boolean fullResolution) {
+        if (outline.length == 0) {
+            return null;
+        }
+        Point[] mapped = new Point[outline.length];
+        for (int i = 0; i < outline.length; i++) {
+            mapped[i] = new Point(outline[i].x * scale + x, outline[i].y * scale + y);
+        }
+        return new Candidate(mapped, Imgproc.contourArea(new MatOfPoint2f(mapped)), fullResolution);
+    }
+
+    /**
+     * Returns the outline of the largest code found, or an empty array if none
+     * was. If the largest was only found in the scaled-down frame and a tile
+     * found the same code, the tile's more precise outline is returned instead.
+     */
+    private static Point[] merge(List<Candidate> candidates) {
+        Candidate largest = null;
+        for (Candidate candidate : candidates) {
+            if (largest == null || candidate.area() > largest.area()) {
+                largest = candidate;
+            }
+        }
+        if (largest == null) {
+            return new Point[0];
+        }
+        if (largest.fullResolution()) {
+            return largest.outline();
+        }
+
+        // The same code has its center inside the other outline and about the
+        // same area
+        MatOfPoint2f largestOutline = new MatOfPoint2f(largest.outline());
+        Candidate sameCode = null;
+        for (Candidate candidate : candidates) {
+            if (candidate.fullResolution() && candidate.area() >= largest.area() * SAME_CODE_AREA_RATIO
+                    && Imgproc.pointPolygonTest(largestOutline, center(candidate.outline()), false) >= 0
+                    && (sameCode == null || candidate.area() > sameCode.area())) {
+                sameCode = candidate;
+            }
+        }
+        return sameCode != null ? sameCode.outline() : largest.outline();
+    }
+
+    private static Point center(Point[] outline) {
+        double x = 0;
+        double y = 0;
+        for (Point p : outline) {
+            x += p.x;
+            y += p.y;
+        }
+        return new Point(x / outline.length, y / outline.length);
+    }
+
+}